@@ -0,0 +1,618 @@
+package com.fava.promise;
+
+import com.fava.Functions.IF1;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded cache of asynchronously loaded values. Concurrent {@link #get} calls for a key that
+ * is being loaded share one promise, so a burst of requests for the same key runs the loader once.
+ *
+ * <p>Entries are evicted by size with W-TinyLFU: new entries enter a small LRU window, and
+ * leave it for the main segmented LRU only if they have been used more often than the entry
+ * they would replace, as counted by a compact frequency sketch. Entries still loading are
+ * never evicted, so that their callers keep sharing one load. Optionally, entries expire a
+ * fixed time after they were loaded, and are reloaded in the background when read after a
+ * shorter refresh time, so readers keep getting the old value without waiting. An expired
+ * entry is never returned, and it is dropped when the policy next catches up with reads and
+ * writes, or on {@link #cleanUp()}, whether it was read again or not. Failed loads, including
+ * cancelled ones, are removed right away, so the next {@link #get} retries.
+ *
+ * <p>A hit is one lookup in a {@link ConcurrentHashMap} and one slot in a lossy, striped
+ * buffer; it never blocks. Reads and writes are replayed into the eviction policy in batches,
+ * by whichever thread gets the policy lock without waiting.
+ *
+ * <p>The promise returned for a key is shared by every caller: cancelling it cancels the load
+ * for all of them.
+ */
+public final class AsyncCache<K, V> {
+	private static final long LOADING = Long.MIN_VALUE;
+
+	private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+	private final IF1<K, Promise<V>> loader;
+	private final long expireNanos;
+	private final long refreshNanos;
+	private final ReadBuffer readBuffer = new ReadBuffer();
+	private final Queue<Node<K, V>> writeBuffer = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final Policy<K, V> policy;
+
+	/**
+	 * A cache holding at most {@code maximumSize} entries, which never expire.
+	 */
+	public AsyncCache(IF1<K, Promise<V>> loader, int maximumSize) {
+		this(loader, maximumSize, null, null);
+	}
+
+	/**
+	 * @param expireAfterWrite  how long a loaded value is kept, or null to keep it until evicted
+	 * @param refreshAfterWrite age after which a read triggers a background reload, or null
+	 */
+	public AsyncCache(IF1<K, Promise<V>> loader, int maximumSize, Duration expireAfterWrite, Duration refreshAfterWrite) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		this.loader = loader;
+		this.expireNanos = expireAfterWrite == null ? Long.MAX_VALUE : expireAfterWrite.toNanos();
+		this.refreshNanos = refreshAfterWrite == null ? Long.MAX_VALUE : refreshAfterWrite.toNanos();
+		this.policy = new Policy<>(map, maximumSize, expireNanos);
+	}
+
+	/**
+	 * Returns the cached promise for the key, loading it if absent or expired. Callers that
+	 * arrive while the key is loading get the same promise.
+	 */
+	public Promise<V> get(K key) {
+		Node<K, V> node = map.get(key);
+		if (node != null) {
+			long age = age(node);
+			if (age < expireNanos) {
+				Promise<V> promise = node.promise;
+				afterRead(node);
+				if (age >= refreshNanos) {
+					refresh(node);
+				}
+				return promise;
+			}
+		}
+		return load(key);
+	}
+
+	/**
+	 * Returns the cached promise for the key, or null if it is absent or expired. Never loads.
+	 */
+	public Promise<V> getIfPresent(K key) {
+		Node<K, V> node = map.get(key);
+		if (node == null || age(node) >= expireNanos) {
+			return null;
+		}
+		afterRead(node);
+		return node.promise;
+	}
+
+	/**
+	 * Drops the entry for the key. A load in flight still completes its promise, but the value
+	 * isn't cached.
+	 */
+	public void invalidate(K key) {
+		Node<K, V> node = map.remove(key);
+		if (node != null) {
+			afterWrite(node);
+		}
+	}
+
+	/**
+	 * Number of entries, including ones still loading. May briefly exceed the maximum size until
+	 * pending writes are replayed into the eviction policy.
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * Replays buffered reads and writes into the eviction policy now, and drops expired
+	 * entries.
+	 */
+	public void cleanUp() {
+		policyLock.lock();
+		try {
+			drain();
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	private Promise<V> load(K key) {
+		Promise<V> promise = new Promise<>();
+		Node<K, V> created = new Node<>(key, promise);
+		for (; ; ) {
+			Node<K, V> existing = map.putIfAbsent(key, created);
+			if (existing == null) {
+				break;
+			}
+			if (age(existing) < expireNanos) {
+				afterRead(existing);
+				return existing.promise;
+			}
+			if (map.replace(key, existing, created)) {
+				afterWrite(existing);
+				break;
+			}
+		}
+		afterWrite(created);
+
+		Promise<V> loaded;
+		try {
+			loaded = loader.apply(key);
+		} catch (RuntimeException e) {
+			loaded = Promise.failure(e);
+		}
+		promise.dependOn(loaded);
+		loaded.addListener(value -> {
+			created.loadedAt = System.nanoTime();
+			promise.notifySuccess(value);
+			// eviction skipped the entry while it was loading, let it catch up
+			afterWrite(created);
+		}, e -> {
+			// drop the entry before failing, so that a caller reacting to the failure reloads
+			remove(created);
+			promise.notifyFailure(e);
+		});
+		// a cancellation from a caller doesn't go through the loader's promise
+		promise.addListener(v -> {
+		}, e -> {
+			if (e instanceof CancellationException) {
+				remove(created);
+			}
+		});
+		return promise;
+	}
+
+	/**
+	 * Reloads a loaded entry in the background; readers keep the old value until then. A failed
+	 * reload keeps the old value as well.
+	 */
+	private void refresh(Node<K, V> node) {
+		if (!Node.REFRESHING.compareAndSet(node, 0, 1)) {
+			return;
+		}
+		Promise<V> reloaded;
+		try {
+			reloaded = loader.apply(node.key);
+		} catch (RuntimeException e) {
+			node.refreshing = 0;
+			return;
+		}
+		reloaded.addListener(value -> {
+			if (map.get(node.key) == node) {
+				node.promise = Promise.unit(value);
+				node.loadedAt = System.nanoTime();
+				// restart its expiry
+				afterWrite(node);
+			}
+			node.refreshing = 0;
+		}, e -> node.refreshing = 0);
+	}
+
+	private void remove(Node<K, V> node) {
+		if (map.remove(node.key, node)) {
+			afterWrite(node);
+		}
+	}
+
+	private static long age(Node<?, ?> node) {
+		long loadedAt = node.loadedAt;
+		return loadedAt == LOADING ? Long.MIN_VALUE : System.nanoTime() - loadedAt;
+	}
+
+	private void afterRead(Node<K, V> node) {
+		if (!readBuffer.offer(node)) {
+			maintain();
+		}
+	}
+
+	/**
+	 * Records an insertion, a (re)load or a removal; the policy tells them apart by looking at
+	 * the map and at the load time.
+	 */
+	private void afterWrite(Node<K, V> node) {
+		writeBuffer.add(node);
+		maintain();
+	}
+
+	private void maintain() {
+		while (policyLock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				policyLock.unlock();
+			}
+			// a write may have been queued while we held the lock
+			if (writeBuffer.isEmpty()) {
+				return;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void drain() {
+		readBuffer.drain(node -> policy.onRead((Node<K, V>) node));
+		Node<K, V> node;
+		while ((node = writeBuffer.poll()) != null) {
+			policy.onWrite(node);
+		}
+		policy.expire();
+		policy.evict();
+	}
+
+	private static final class Node<K, V> {
+		@SuppressWarnings("rawtypes")
+		static final AtomicIntegerFieldUpdater<Node> REFRESHING =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+		final K key;
+		volatile Promise<V> promise;
+		/**
+		 * {@link System#nanoTime()} of the last successful load, or {@link #LOADING}.
+		 */
+		volatile long loadedAt = LOADING;
+		volatile int refreshing;
+
+		// guarded by policyLock
+		Node<K, V> prev;
+		Node<K, V> next;
+		int queue = Policy.NONE;
+		/**
+		 * The load time the expiry queue last saw, {@link #LOADING} if none.
+		 */
+		long writtenAt = LOADING;
+
+		Node(K key, Promise<V> promise) {
+			this.key = key;
+			this.promise = promise;
+		}
+	}
+
+	/**
+	 * W-TinyLFU over intrusive LRU queues: a window of about 1% of the capacity, and a main
+	 * space split into probation (20%) and protected (80%). Only touched under the policy lock.
+	 *
+	 * <p>With a fixed time to live, load order is expiry order: every load is stamped onto a
+	 * FIFO, and expired entries are swept from its head. A reload stamps the entry again, and
+	 * the stamp it left behind is skipped once it reaches the head.
+	 */
+	private static final class Policy<K, V> {
+		static final int NONE = 0;
+		static final int WINDOW = 1;
+		static final int PROBATION = 2;
+		static final int PROTECTED = 3;
+
+		private final ConcurrentHashMap<K, Node<K, V>> map;
+		private final int maximumSize;
+		private final int maxWindow;
+		private final int maxProtected;
+		private final FrequencySketch sketch;
+		private final AccessQueue<K, V> window = new AccessQueue<>();
+		private final AccessQueue<K, V> probation = new AccessQueue<>();
+		private final AccessQueue<K, V> protectedQueue = new AccessQueue<>();
+		private final long expireNanos;
+		private final Queue<Stamp<K, V>> expiry = new ArrayDeque<>();
+
+		Policy(ConcurrentHashMap<K, Node<K, V>> map, int maximumSize, long expireNanos) {
+			this.map = map;
+			this.maximumSize = maximumSize;
+			this.expireNanos = expireNanos;
+			this.maxWindow = Math.max(1, maximumSize / 100);
+			this.maxProtected = (maximumSize - maxWindow) * 4 / 5;
+			this.sketch = new FrequencySketch(maximumSize);
+		}
+
+		void onRead(Node<K, V> node) {
+			sketch.increment(node.key);
+			switch (node.queue) {
+				case WINDOW:
+					window.moveToBack(node);
+					break;
+				case PROBATION:
+					probation.unlink(node);
+					protectedQueue.linkLast(node);
+					node.queue = PROTECTED;
+					while (protectedQueue.size > maxProtected) {
+						Node<K, V> demoted = protectedQueue.pollFirst();
+						probation.linkLast(demoted);
+						demoted.queue = PROBATION;
+					}
+					break;
+				case PROTECTED:
+					protectedQueue.moveToBack(node);
+					break;
+				default:
+					// already evicted, or its insertion hasn't been replayed yet
+			}
+		}
+
+		void onWrite(Node<K, V> node) {
+			boolean present = map.get(node.key) == node;
+			if (present && node.queue == NONE) {
+				sketch.increment(node.key);
+				window.linkLast(node);
+				node.queue = WINDOW;
+			} else if (!present && node.queue != NONE) {
+				queueOf(node).unlink(node);
+				node.queue = NONE;
+			}
+			long loadedAt = node.loadedAt;
+			if (present && expireNanos != Long.MAX_VALUE && loadedAt != LOADING && loadedAt != node.writtenAt) {
+				node.writtenAt = loadedAt;
+				expiry.add(new Stamp<>(node, loadedAt));
+			}
+		}
+
+		/**
+		 * Drops the entries loaded more than {@code expireNanos} ago.
+		 */
+		void expire() {
+			long now = System.nanoTime();
+			for (Stamp<K, V> stamp; (stamp = expiry.peek()) != null; ) {
+				Node<K, V> node = stamp.node;
+				if (node.queue != NONE && node.writtenAt == stamp.loadedAt) {
+					if (now - stamp.loadedAt < expireNanos) {
+						return;
+					}
+					queueOf(node).unlink(node);
+					node.queue = NONE;
+					map.remove(node.key, node);
+				}
+				expiry.poll();
+			}
+		}
+
+		void evict() {
+			while (window.size > maxWindow) {
+				Node<K, V> node = window.pollFirst();
+				probation.linkLast(node);
+				node.queue = PROBATION;
+			}
+			// every entry may be loading, give up after passing over each of them once
+			int skips = window.size + probation.size + protectedQueue.size;
+			while (window.size + probation.size + protectedQueue.size > maximumSize) {
+				Node<K, V> victim = probation.first();
+				Node<K, V> candidate = probation.last();
+				if (victim == null) {
+					victim = protectedQueue.size > 0 ? protectedQueue.first() : window.first();
+				} else if (candidate != victim && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+					// the newcomer isn't used more than what it would replace, reject it
+					victim = candidate;
+				}
+				if (victim.loadedAt == LOADING) {
+					// evicting it would let the next get start a second load for the key
+					if (--skips < 0) {
+						return;
+					}
+					queueOf(victim).moveToBack(victim);
+					continue;
+				}
+				queueOf(victim).unlink(victim);
+				victim.queue = NONE;
+				map.remove(victim.key, victim);
+			}
+		}
+
+		private AccessQueue<K, V> queueOf(Node<K, V> node) {
+			switch (node.queue) {
+				case WINDOW:
+					return window;
+				case PROBATION:
+					return probation;
+				default:
+					return protectedQueue;
+			}
+		}
+	}
+
+	/**
+	 * A load of {@code node} at {@code loadedAt}, waiting in the expiry queue.
+	 */
+	private static final class Stamp<K, V> {
+		final Node<K, V> node;
+		final long loadedAt;
+
+		Stamp(Node<K, V> node, long loadedAt) {
+			this.node = node;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * Doubly linked list through the nodes, least recently used first.
+	 */
+	private static final class AccessQueue<K, V> {
+		Node<K, V> head;
+		Node<K, V> tail;
+		int size;
+
+		Node<K, V> first() {
+			return head;
+		}
+
+		Node<K, V> last() {
+			return tail;
+		}
+
+		Node<K, V> pollFirst() {
+			Node<K, V> node = head;
+			unlink(node);
+			return node;
+		}
+
+		void linkLast(Node<K, V> node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			size++;
+		}
+
+		void unlink(Node<K, V> node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			size--;
+		}
+
+		void moveToBack(Node<K, V> node) {
+			if (node != tail) {
+				unlink(node);
+				linkLast(node);
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, four per key, halved every {@code 10 * capacity}
+	 * increments so that old popularity fades.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = {
+				0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maximumSize) {
+			int capacity = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 26)) - 1) << 1;
+			table = new long[capacity];
+			sampleSize = 10 * capacity;
+		}
+
+		int frequency(Object key) {
+			int item = spread(key.hashCode());
+			int start = (item & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int offset = (start + i) << 2;
+				frequency = Math.min(frequency, (int) ((table[indexOf(item, i)] >>> offset) & 0xF));
+			}
+			return frequency;
+		}
+
+		void increment(Object key) {
+			int item = spread(key.hashCode());
+			int start = (item & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(item, i);
+				int offset = (start + i) << 2;
+				if (((table[index] >>> offset) & 0xF) != 0xF) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+
+		private int indexOf(int item, int i) {
+			long hash = (item + SEEDS[i]) * SEEDS[i];
+			hash += hash >>> 32;
+			return (int) hash & (table.length - 1);
+		}
+
+		private static int spread(int h) {
+			h = ((h >>> 16) ^ h) * 0x45d9f3b;
+			h = ((h >>> 16) ^ h) * 0x45d9f3b;
+			return (h >>> 16) ^ h;
+		}
+	}
+
+	/**
+	 * Striped ring buffers of recent reads. A read that finds its stripe full or contended is
+	 * dropped; the policy only needs a sample of the reads.
+	 */
+	private static final class ReadBuffer {
+		private static final int STRIPE_SIZE = 32;
+		private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+		private final Stripe[] stripes;
+
+		ReadBuffer() {
+			int count = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+			stripes = new Stripe[count];
+			for (int i = 0; i < count; i++) {
+				stripes[i] = new Stripe();
+			}
+		}
+
+		/**
+		 * @return false if the stripe is full and should be drained
+		 */
+		boolean offer(Object node) {
+			int probe = (int) Thread.currentThread().getId() * 0x9E3779B9;
+			Stripe stripe = stripes[(probe >>> 16) & (stripes.length - 1)];
+			long tail = stripe.writeCounter;
+			if (tail - stripe.readCounter >= STRIPE_SIZE) {
+				return false;
+			}
+			if (Stripe.WRITE_COUNTER.compareAndSet(stripe, tail, tail + 1)) {
+				stripe.buffer.lazySet((int) tail & STRIPE_MASK, node);
+			}
+			return true;
+		}
+
+		void drain(Consumer<Object> consumer) {
+			for (Stripe stripe : stripes) {
+				long head = stripe.readCounter;
+				long tail = stripe.writeCounter;
+				for (; head < tail; head++) {
+					int index = (int) head & STRIPE_MASK;
+					Object node = stripe.buffer.get(index);
+					if (node == null) {
+						// the writer claimed the slot but hasn't filled it yet
+						break;
+					}
+					stripe.buffer.lazySet(index, null);
+					consumer.accept(node);
+				}
+				stripe.readCounter = head;
+			}
+		}
+
+		private static final class Stripe {
+			static final AtomicLongFieldUpdater<Stripe> WRITE_COUNTER =
+					AtomicLongFieldUpdater.newUpdater(Stripe.class, "writeCounter");
+
+			final AtomicReferenceArray<Object> buffer = new AtomicReferenceArray<>(STRIPE_SIZE);
+			volatile long writeCounter;
+			volatile long readCounter;
+		}
+	}
+}
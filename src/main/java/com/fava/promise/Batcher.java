@@ -0,0 +1,102 @@
+package com.fava.promise;
+
+import com.fava.Functions.IF1;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The function returned by {@link Promises#batcher}: gathers the keys requested within a time
+ * window into one call of the batch function, and completes each caller's promise from the
+ * map it returns.
+ *
+ * <p>The first key of a batch arms a {@link WheelTimer} timeout; the batch is dispatched when it
+ * fires or as soon as the batch is full, whichever comes first. A key requested again while its
+ * batch is still open gets the same promise. The open batch is guarded by the batcher's
+ * monitor, which is only held to add a key or to swap the batch out.
+ */
+final class Batcher<K, V> implements IF1<K, Promise<V>> {
+	private final IF1<List<K>, Map<K, V>> batchFn;
+	private final int maxBatch;
+	private final long delayNanos;
+	private final Executor executor;
+	// guarded by this
+	private Map<K, Promise<V>> open = new LinkedHashMap<>();
+	private WheelTimer.Timeout timeout;
+
+	/**
+	 * @param executor where the batch function runs, or null for {@link PromiseExecutors#current()}
+	 */
+	Batcher(IF1<List<K>, Map<K, V>> batchFn, int maxBatch, long delayNanos, Executor executor) {
+		if (maxBatch <= 0) {
+			throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+		}
+		this.batchFn = batchFn;
+		this.maxBatch = maxBatch;
+		this.delayNanos = delayNanos;
+		this.executor = executor;
+	}
+
+	@Override
+	public Promise<V> apply(K key) {
+		Promise<V> promise;
+		Map<K, Promise<V>> full = null;
+		synchronized (this) {
+			promise = open.get(key);
+			if (promise != null) {
+				return promise;
+			}
+			promise = new Promise<>();
+			open.put(key, promise);
+			if (open.size() >= maxBatch) {
+				full = take();
+			} else if (open.size() == 1) {
+				Map<K, Promise<V>> batch = open;
+				timeout = WheelTimer.shared().schedule(() -> flush(batch), delayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		if (full != null) {
+			dispatch(full);
+		}
+		return promise;
+	}
+
+	private void flush(Map<K, Promise<V>> batch) {
+		synchronized (this) {
+			if (open != batch) {
+				// already dispatched because it filled up
+				return;
+			}
+			take();
+		}
+		dispatch(batch);
+	}
+
+	private Map<K, Promise<V>> take() {
+		Map<K, Promise<V>> batch = open;
+		open = new LinkedHashMap<>();
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		return batch;
+	}
+
+	private void dispatch(Map<K, Promise<V>> batch) {
+		List<K> keys = new ArrayList<>(batch.keySet());
+		Promise<Map<K, V>> values = Promise.fulfillInAsync(() -> batchFn.apply(keys),
+				executor == null ? PromiseExecutors.current() : executor);
+		values.addListener(map -> batch.forEach((key, promise) -> {
+			if (map != null && map.containsKey(key)) {
+				promise.notifySuccess(map.get(key));
+			} else {
+				promise.notifyFailure(new NoSuchElementException("Batch returned no value for key " + key));
+			}
+		}), e -> batch.values().forEach(promise -> promise.notifyFailure(e)));
+	}
+}
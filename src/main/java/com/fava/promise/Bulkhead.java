@@ -0,0 +1,161 @@
+package com.fava.promise;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the tasks of one dependency: at most {@code maxConcurrent} of them run at a time and at
+ * most {@code maxWaiting} more wait for a turn. Anything beyond that fails right away with a
+ * {@link RejectedExecutionException}, so a degraded dependency can't fill the shared pool and
+ * starve unrelated work.
+ *
+ * <p>Permits work as in {@link Throttle}. Queue slots are a second counter, reserved with a CAS
+ * before a task is queued and given back when it leaves the queue, either to run or because it
+ * was cancelled while waiting. Neither counter is ever guarded by a lock.
+ */
+public final class Bulkhead {
+	private final Queue<Job<?>> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger permits;
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final AtomicInteger wip = new AtomicInteger(0);
+	private final int maxConcurrent;
+	private final int maxWaiting;
+	private final Executor executor;
+
+	/**
+	 * Runs tasks on the executor returned by {@link PromiseExecutors#current()}.
+	 */
+	public Bulkhead(int maxConcurrent, int maxWaiting) {
+		this(maxConcurrent, maxWaiting, PromiseExecutors.current());
+	}
+
+	public Bulkhead(int maxConcurrent, int maxWaiting, Executor executor) {
+		if (maxConcurrent <= 0) {
+			throw new IllegalArgumentException("maxConcurrent must be positive: " + maxConcurrent);
+		}
+		if (maxWaiting < 0) {
+			throw new IllegalArgumentException("maxWaiting must not be negative: " + maxWaiting);
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxWaiting = maxWaiting;
+		this.permits = new AtomicInteger(maxConcurrent);
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts the task if a permit is free, queues it if a queue slot is, and fails it with a
+	 * {@link RejectedExecutionException} otherwise.
+	 */
+	public <V> Promise<V> submit(Callable<V> task) {
+		Job<V> job = new Job<>(task);
+		// only skip the queue when nobody is waiting in it
+		if (queue.isEmpty() && tryAcquire()) {
+			job.start();
+			return job.promise;
+		}
+		if (!reserve()) {
+			return Promise.failure(new RejectedExecutionException(
+					"Bulkhead full: " + maxConcurrent + " running, " + maxWaiting + " waiting"));
+		}
+		queue.add(job);
+		drain();
+		return job.promise;
+	}
+
+	/**
+	 * Number of tasks running right now.
+	 */
+	public int inFlight() {
+		return maxConcurrent - permits.get();
+	}
+
+	/**
+	 * Number of submitted tasks waiting for a permit.
+	 */
+	public int waiting() {
+		return waiting.get();
+	}
+
+	private boolean tryAcquire() {
+		for (; ; ) {
+			int available = permits.get();
+			if (available == 0) {
+				return false;
+			}
+			if (permits.compareAndSet(available, available - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private boolean reserve() {
+		for (; ; ) {
+			int queued = waiting.get();
+			if (queued >= maxWaiting) {
+				return false;
+			}
+			if (waiting.compareAndSet(queued, queued + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Starts queued jobs while permits are free, one thread at a time, like {@link Throttle}.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		for (; ; ) {
+			startQueued();
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	private void startQueued() {
+		while (!queue.isEmpty() && tryAcquire()) {
+			Job<?> job = queue.poll();
+			if (job == null) {
+				permits.incrementAndGet();
+				continue;
+			}
+			waiting.decrementAndGet();
+			job.start();
+		}
+	}
+
+	private void release() {
+		permits.incrementAndGet();
+		drain();
+	}
+
+	private final class Job<V> {
+		final Callable<V> task;
+		final Promise<V> promise = new Promise<>() {
+			@Override
+			void onCancelled(boolean mayInterruptIfRunning) {
+				// remove and poll race for the node, only one of them gives the slot back
+				if (queue.remove(Job.this)) {
+					waiting.decrementAndGet();
+				}
+			}
+		};
+
+		Job(Callable<V> task) {
+			this.task = task;
+		}
+
+		void start() {
+			promise.fulfillOn(task, executor, Bulkhead.this::release);
+		}
+	}
+}
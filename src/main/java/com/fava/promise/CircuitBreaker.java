@@ -0,0 +1,199 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calling a dependency that keeps failing. The breaker watches the outcomes of the last
+ * {@code windowSize} calls; once the window is full and the share of failures in it reaches
+ * {@code failureRateThreshold}, the breaker opens and calls fail right away with a
+ * {@link RejectedExecutionException}. After {@code openDuration} the next call goes through as
+ * a trial: its success closes the breaker with an empty window, its failure or cancellation
+ * opens it again for another {@code openDuration}. Other calls fail fast while the trial runs.
+ * A trial still running after {@code openDuration} has expired: the next call becomes the new
+ * trial, and the outcome of the old one is ignored.
+ *
+ * <p>Other cancelled calls say nothing about the dependency and are not counted.
+ *
+ * <p>The window is a ring of outcome slots with running counts; a call takes the next slot
+ * with a getAndIncrement and swaps its outcome in, adjusting the counts by what it replaced.
+ * The state and the time it was entered form one immutable {@link Phase}, read once on every
+ * call and replaced with a CAS.
+ */
+public final class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final int EMPTY = 0;
+	private static final int SUCCESS = 1;
+	private static final int FAILURE = 2;
+
+	private final int windowSize;
+	private final double failureRateThreshold;
+	private final long openNanos;
+	private final Executor executor;
+	private final AtomicIntegerArray window;
+	private final AtomicLong cursor = new AtomicLong(0);
+	private final AtomicInteger recorded = new AtomicInteger(0);
+	private final AtomicInteger failures = new AtomicInteger(0);
+	private final AtomicReference<Phase> phase = new AtomicReference<>(Phase.CLOSED);
+
+	/**
+	 * Runs tasks given to {@link #submit} on the executor returned by
+	 * {@link PromiseExecutors#current()}.
+	 */
+	public CircuitBreaker(int windowSize, double failureRateThreshold, Duration openDuration) {
+		this(windowSize, failureRateThreshold, openDuration, PromiseExecutors.current());
+	}
+
+	/**
+	 * @param failureRateThreshold share of failed calls, within (0, 1], that opens the breaker
+	 */
+	public CircuitBreaker(int windowSize, double failureRateThreshold, Duration openDuration, Executor executor) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+		}
+		if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+			throw new IllegalArgumentException("failureRateThreshold must be within (0, 1]: " + failureRateThreshold);
+		}
+		this.windowSize = windowSize;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openNanos = openDuration.toNanos();
+		this.executor = executor;
+		this.window = new AtomicIntegerArray(windowSize);
+	}
+
+	/**
+	 * Runs the task asynchronously, unless the breaker is open.
+	 */
+	public <V> Promise<V> submit(Callable<V> task) {
+		return call(() -> Promise.fulfillInAsync(task, executor));
+	}
+
+	/**
+	 * Starts an asynchronous call, unless the breaker is open, and records its outcome. Use it
+	 * to put the breaker in front of calls that are already asynchronous, such as a
+	 * {@link Bulkhead}: {@code breaker.call(() -> bulkhead.submit(task))}.
+	 */
+	public <V> Promise<V> call(Callable<Promise<V>> action) {
+		Phase admitted = admit();
+		if (admitted == null) {
+			return Promise.failure(new RejectedExecutionException("Circuit breaker is open"));
+		}
+		Promise<V> promise;
+		try {
+			promise = action.call();
+		} catch (Exception e) {
+			onFailure(admitted, e);
+			return Promise.failure(e);
+		}
+		promise.addListener(v -> onSuccess(admitted), e -> onFailure(admitted, e));
+		return promise;
+	}
+
+	public State state() {
+		return phase.get().state;
+	}
+
+	/**
+	 * Share of failures among the calls in the window, 0 while it is empty.
+	 */
+	public double failureRate() {
+		int n = recorded.get();
+		return n == 0 ? 0 : (double) failures.get() / n;
+	}
+
+	/**
+	 * The phase a call may start in: {@link Phase#CLOSED}, a new half-open phase if the call
+	 * is the trial, or null if it must fail fast. An open phase, or a trial, that has lasted
+	 * {@code openDuration} lets the next call through as the new trial.
+	 */
+	private Phase admit() {
+		Phase current = phase.get();
+		if (current == Phase.CLOSED) {
+			return current;
+		}
+		long now = System.nanoTime();
+		if (now - current.since < openNanos) {
+			return null;
+		}
+		Phase trial = new Phase(State.HALF_OPEN, now);
+		return phase.compareAndSet(current, trial) ? trial : null;
+	}
+
+	private void onSuccess(Phase admitted) {
+		if (admitted == Phase.CLOSED) {
+			record(SUCCESS);
+		} else if (phase.compareAndSet(admitted, Phase.CLOSED)) {
+			reset();
+		}
+	}
+
+	private void onFailure(Phase admitted, Exception exception) {
+		if (admitted != Phase.CLOSED) {
+			// a trial that expired has lost its phase to a newer one, its outcome no longer counts
+			phase.compareAndSet(admitted, new Phase(State.OPEN, System.nanoTime()));
+			return;
+		}
+		if (exception instanceof CancellationException) {
+			return;
+		}
+		record(FAILURE);
+		if (recorded.get() >= windowSize && failures.get() >= failureRateThreshold * windowSize) {
+			phase.compareAndSet(Phase.CLOSED, new Phase(State.OPEN, System.nanoTime()));
+		}
+	}
+
+	private void record(int outcome) {
+		int slot = (int) (cursor.getAndIncrement() % windowSize);
+		int replaced = window.getAndSet(slot, outcome);
+		if (replaced == EMPTY) {
+			recorded.incrementAndGet();
+		}
+		if (outcome == FAILURE && replaced != FAILURE) {
+			failures.incrementAndGet();
+		} else if (outcome != FAILURE && replaced == FAILURE) {
+			failures.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Empties the window when a trial closes the breaker. Only the odd straggler that started
+	 * before the breaker opened is still recording then.
+	 */
+	private void reset() {
+		for (int i = 0; i < windowSize; i++) {
+			int replaced = window.getAndSet(i, EMPTY);
+			if (replaced != EMPTY) {
+				recorded.decrementAndGet();
+				if (replaced == FAILURE) {
+					failures.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A state and the {@link System#nanoTime()} it was entered at. Every transition installs a
+	 * new instance, so a trial can tell whether the breaker is still in the phase it started.
+	 */
+	private static final class Phase {
+		static final Phase CLOSED = new Phase(State.CLOSED, 0L);
+
+		final State state;
+		final long since;
+
+		Phase(State state, long since) {
+			this.state = state;
+			this.since = since;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.fava.promise;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A promise that waits for a fixed number of inputs without blocking any thread. Every input
+ * that succeeds calls {@link #arrive()}; the one that brings the count to zero combines the
+ * values on its own thread. The first failing input rejects the join right away.
+ *
+ * <p>Subclasses store the input values in plain fields before arriving; the atomic decrement
+ * publishes them to whichever thread arrives last.
+ */
+abstract class CountdownJoin<R> extends Promise<R> {
+	private static final VarHandle PENDING;
+
+	static {
+		try {
+			PENDING = MethodHandles.lookup().findVarHandle(CountdownJoin.class, "pending", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile int pending;
+
+	CountdownJoin(int inputs) {
+		this.pending = inputs;
+	}
+
+	/**
+	 * Counts one successful input down, and completes the join if it was the last one.
+	 */
+	final void arrive() {
+		if ((int) PENDING.getAndAdd(this, -1) == 1) {
+			R value;
+			try {
+				value = combine();
+			} catch (Exception e) {
+				notifyFailure(e);
+				return;
+			}
+			notifySuccess(value);
+		}
+	}
+
+	/**
+	 * Rejects the join. Only the first failure is kept, later ones are ignored.
+	 */
+	final void reject(Exception exception) {
+		notifyFailure(exception);
+	}
+
+	/**
+	 * Builds the value once every input has arrived. Throwing rejects the join.
+	 */
+	abstract R combine() throws Exception;
+}
@@ -0,0 +1,143 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleFunction;
+import java.util.function.DoubleToIntFunction;
+import java.util.function.DoubleToLongFunction;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The counterpart of {@link Promise} for a double, which it never boxes: the value is kept in a
+ * double field and handed to the functions and listeners unboxed, so a chain of {@code fmap}s
+ * over ratios allocates no {@link Double}. Boxing only happens where the value crosses over to a
+ * generic promise, in {@link #boxed()} or {@link #fmapToObj}.
+ */
+public class DoublePromise extends PrimitivePromise {
+	private double value;
+
+	/**
+	 * Listener to get the value or failure info in the future.
+	 */
+	public interface Listener {
+		void onSuccess(double value);
+
+		void onFailure(Exception exception);
+	}
+
+	public DoublePromise() {
+	}
+
+	/**
+	 * Lifts a value into a promise.
+	 */
+	public static DoublePromise unit(double value) {
+		DoublePromise promise = new DoublePromise();
+		promise.notifySuccess(value);
+		return promise;
+	}
+
+	/**
+	 * Lifts a failure into a promise.
+	 */
+	public static DoublePromise failure(Exception exception) {
+		DoublePromise promise = new DoublePromise();
+		promise.notifyFailure(exception);
+		return promise;
+	}
+
+	/**
+	 * Unboxes the value of {@code promise} once; a null value fails the returned promise.
+	 */
+	public static DoublePromise from(Promise<Double> promise) {
+		return promise.fmapToDouble(Double::doubleValue);
+	}
+
+	/**
+	 * Fulfills the promise, moves the state from PENDING to SUCCEEDED. It's intended
+	 * to be called inside of subclasses.
+	 */
+	protected final void notifySuccess(double value) {
+		if (claim()) {
+			this.value = value;
+			publish(SUCCEEDED);
+		}
+	}
+
+	/**
+	 * Gets the value of this promise, or 0.0 unless the state is SUCCEEDED.
+	 */
+	public double getValue() {
+		return isSucceeded() ? value : 0;
+	}
+
+	/**
+	 * Waits until the promise is fulfilled or rejected, see {@link Promise#await()}.
+	 *
+	 * @return the value if succeeded, or 0.0 if failed.
+	 */
+	public double await() {
+		awaitDone();
+		return getValue();
+	}
+
+	/**
+	 * Waits at most {@code timeout} until the promise is fulfilled or rejected.
+	 *
+	 * @return the value if succeeded, or 0.0 if failed.
+	 * @throws TimeoutException if the promise is still pending when the timeout elapses
+	 */
+	public double await(Duration timeout) throws TimeoutException {
+		awaitDone(timeout);
+		return getValue();
+	}
+
+	public void addListener(Listener listener) {
+		addListener(listener::onSuccess, listener::onFailure);
+	}
+
+	public void addListener(DoubleConsumer success, Consumer<Exception> failure) {
+		listen(() -> success.accept(value), failure);
+	}
+
+	/**
+	 * Maps the value of this promise. If {@code f} throws, the returned promise fails with the
+	 * exception.
+	 */
+	public DoublePromise fmap(DoubleUnaryOperator f) {
+		return derive(new DoublePromise(), stage -> stage.notifySuccess(f.applyAsDouble(value)));
+	}
+
+	public IntPromise fmapToInt(DoubleToIntFunction f) {
+		return derive(new IntPromise(), stage -> stage.notifySuccess(f.applyAsInt(value)));
+	}
+
+	public LongPromise fmapToLong(DoubleToLongFunction f) {
+		return derive(new LongPromise(), stage -> stage.notifySuccess(f.applyAsLong(value)));
+	}
+
+	/**
+	 * Maps the value of this promise into a generic promise; cancelling that promise cancels
+	 * this one.
+	 */
+	public <R> Promise<R> fmapToObj(DoubleFunction<R> f) {
+		return deriveObj(stage -> stage.succeed(f.apply(value)));
+	}
+
+	/**
+	 * The value of this promise as a generic promise.
+	 */
+	public Promise<Double> boxed() {
+		return fmapToObj(Double::valueOf);
+	}
+
+	/**
+	 * {@link Promise#fmapToDouble}: a listener on {@code promise} completing a double stage.
+	 */
+	static <T> DoublePromise map(Promise<T> promise, ToDoubleFunction<? super T> f) {
+		return derive(promise, new DoublePromise(), (stage, v) -> stage.notifySuccess(f.applyAsDouble(v)));
+	}
+}
@@ -0,0 +1,218 @@
+package com.fava.promise;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread running tasks in submission order, for request handling that should stay on
+ * one thread from start to end.
+ *
+ * <p>Promises created on a loop thread are bound to that loop: their listeners only ever run
+ * on it. Any thread may complete such a promise, and learns right away whether it won, but
+ * the listeners of a completion from another thread, like listeners registered from another
+ * thread, are handed over through the loop's queue; the loop alone touches the listener
+ * stack, with plain writes. A listener registered from a loop on a pending promise bound
+ * elsewhere, or to no loop, hops back to its own loop when it fires; on a promise that is
+ * already done it runs right away. Code running on a loop therefore only ever continues on
+ * that same loop.
+ *
+ * <p>Tasks are queued on a multi-producer single-consumer linked queue: producers append with
+ * a CAS on the tail, the loop takes from the head without any atomic. The loop parks when the
+ * queue is empty; a producer only unparks it when it has announced that it is going to sleep.
+ * A loop that was shut down exits by swapping its empty queue's tail for a terminal node, so a
+ * task is either appended before that and run, or refused.
+ *
+ * <p>A loop must not block: awaiting a pending promise bound to the current loop throws an
+ * {@link IllegalStateException}, since its completion would wait behind the blocked task.
+ */
+public final class EventLoop implements Executor, SerialExecutor {
+	private static final VarHandle TAIL;
+	private static final VarHandle NEXT;
+	private static final AtomicInteger COUNT = new AtomicInteger(0);
+	/**
+	 * The tail of a loop whose thread has exited.
+	 */
+	private static final Node TERMINATED = new Node(null);
+	private static final Object lock = new Object();
+	private static volatile EventLoop[] group;
+	private static final AtomicInteger nextInGroup = new AtomicInteger(0);
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			TAIL = l.findVarHandle(EventLoop.class, "tail", Node.class);
+			NEXT = l.findVarHandle(Node.class, "next", Node.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final LoopThread thread;
+	/**
+	 * Consumer side, only touched by the loop thread. Always a node whose task was taken.
+	 */
+	private Node head;
+	private volatile Node tail;
+	private volatile boolean sleeping;
+	private volatile boolean shutdown;
+
+	/**
+	 * Starts a loop on a new daemon thread named {@code name}.
+	 */
+	public EventLoop(String name) {
+		head = new Node(null);
+		tail = head;
+		thread = new LoopThread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * One of the shared loops, picked round-robin. There is one shared loop per available
+	 * processor, all started on first use.
+	 */
+	public static EventLoop next() {
+		EventLoop[] loops = group;
+		if (loops == null) {
+			synchronized (lock) {
+				loops = group;
+				if (loops == null) {
+					loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+					for (int i = 0; i < loops.length; i++) {
+						loops[i] = new EventLoop("fava-loop-" + COUNT.incrementAndGet());
+					}
+					group = loops;
+				}
+			}
+		}
+		return loops[Math.floorMod(nextInGroup.getAndIncrement(), loops.length)];
+	}
+
+	/**
+	 * The loop running the calling thread, or null if it is not a loop thread.
+	 */
+	public static EventLoop current() {
+		Thread t = Thread.currentThread();
+		return t instanceof LoopThread ? ((LoopThread) t).loop : null;
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues the task to run on the loop after every task queued before it.
+	 *
+	 * @throws RejectedExecutionException if the loop was shut down
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (shutdown || !offer(task)) {
+			throw new RejectedExecutionException("Event loop " + thread.getName() + " is shut down");
+		}
+	}
+
+	/**
+	 * Queues the task like {@link #execute}, but still accepts it after a shutdown, as long as
+	 * the loop thread hasn't exited. Promises hand their listeners over this way, so that the
+	 * listeners of a promise completed while its loop drains still run there.
+	 *
+	 * @return false if the thread has exited: nothing runs on the loop any more, and the
+	 * caller may do the loop's work itself.
+	 */
+	boolean offer(Runnable task) {
+		Node node = new Node(task);
+		Node prev;
+		do {
+			prev = tail;
+			if (prev == TERMINATED) {
+				return false;
+			}
+		} while (!TAIL.compareAndSet(this, prev, node));
+		NEXT.setRelease(prev, node);
+		if (sleeping && !inEventLoop()) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting tasks. The loop runs the tasks already queued, and the listeners of
+	 * promises bound to it that complete meanwhile, then its thread exits.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		LockSupport.unpark(thread);
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	private void run() {
+		for (; ; ) {
+			Runnable task = poll();
+			if (task != null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					// a failing task must not take the loop down with it
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+				}
+				continue;
+			}
+			if (head != tail) {
+				// a producer swapped the tail but hasn't linked its node yet
+				Thread.onSpinWait();
+				continue;
+			}
+			if (shutdown && TAIL.compareAndSet(this, head, TERMINATED)) {
+				return;
+			}
+			sleeping = true;
+			// re-check after announcing, a producer that missed the flag has appended by now
+			if (head == tail && !shutdown) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+	}
+
+	private Runnable poll() {
+		Node next = (Node) NEXT.getAcquire(head);
+		if (next == null) {
+			return null;
+		}
+		Runnable task = next.task;
+		next.task = null;
+		head = next;
+		return task;
+	}
+
+	private static final class Node {
+		Runnable task;
+		volatile Node next;
+
+		Node(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	private static final class LoopThread extends Thread {
+		private final EventLoop loop;
+
+		LoopThread(EventLoop loop, String name) {
+			super(name);
+			this.loop = loop;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			loop.run();
+		}
+	}
+}
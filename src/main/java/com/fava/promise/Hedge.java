@@ -0,0 +1,139 @@
+package com.fava.promise;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The promise of {@link Hedger#hedge}: runs the task, starts a duplicate whenever the
+ * attempts so far have neither succeeded within the hedge delay nor all failed, and takes the
+ * first success.
+ *
+ * <p>Attempt slots are claimed with a counter, so the hedge timer and failing attempts may
+ * start attempts concurrently. {@code outstanding} counts the attempts that may still succeed;
+ * it is raised before a slot is claimed, so it only drops to zero once every slot is taken and
+ * every attempt has failed.
+ */
+final class Hedge<T> extends Promise<T> {
+	private final Callable<T> task;
+	private final Executor executor;
+	private final long delayNanos;
+	private final Hedger hedger;
+	private final AtomicReferenceArray<Promise<T>> attempts;
+	private final long[] starts;
+	private final AtomicInteger launched = new AtomicInteger(0);
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private volatile WheelTimer.Timeout timeout;
+
+	Hedge(Callable<T> task, Hedger hedger) {
+		this.task = task;
+		this.hedger = hedger;
+		this.executor = hedger.executor();
+		this.delayNanos = hedger.delayNanos();
+		this.attempts = new AtomicReferenceArray<>(hedger.maxHedges() + 1);
+		this.starts = new long[hedger.maxHedges() + 1];
+	}
+
+	Promise<T> start() {
+		launch();
+		scheduleHedge();
+		return this;
+	}
+
+	private void scheduleHedge() {
+		if (launched.get() < attempts.length() && !isDone()) {
+			timeout = WheelTimer.shared().schedule(this::hedge, delayNanos, TimeUnit.NANOSECONDS);
+			if (isDone()) {
+				timeout.cancel();
+			}
+		}
+	}
+
+	private void hedge() {
+		if (!isDone() && launch()) {
+			scheduleHedge();
+		}
+	}
+
+	/**
+	 * Starts the next attempt, unless every slot is taken.
+	 */
+	private boolean launch() {
+		outstanding.incrementAndGet();
+		int index = launched.getAndIncrement();
+		if (index >= attempts.length() || isDone()) {
+			release();
+			return false;
+		}
+		starts[index] = System.nanoTime();
+		Promise<T> attempt = Promise.fulfillInAsync(task, executor);
+		// the volatile write publishes starts[index] along with it
+		attempts.set(index, attempt);
+		attempt.addListener(value -> succeeded(index, value), e -> failed(index, e));
+		if (isDone()) {
+			// stop() may have missed this attempt
+			attempt.cancel(true);
+		}
+		return true;
+	}
+
+	private void succeeded(int index, T value) {
+		hedger.record(System.nanoTime() - starts[index]);
+		notifySuccess(value);
+		stop(true);
+	}
+
+	private void failed(int index, Exception exception) {
+		if (isDone()) {
+			// stopped along with the hedge, stop() already recorded it
+			release();
+			return;
+		}
+		hedger.record(System.nanoTime() - starts[index]);
+		if (!failure.compareAndSet(null, exception)) {
+			failure.get().addSuppressed(exception);
+		}
+		// don't wait for the timer, a failure is a reason to try again right away
+		launch();
+		release();
+	}
+
+	/**
+	 * Accounts for an attempt, or a claim, that won't succeed.
+	 */
+	private void release() {
+		if (outstanding.decrementAndGet() == 0 && launched.get() >= attempts.length()) {
+			Exception e = failure.get();
+			if (e != null) {
+				notifyFailure(e);
+			}
+		}
+	}
+
+	@Override
+	void onCancelled(boolean mayInterruptIfRunning) {
+		stop(mayInterruptIfRunning);
+	}
+
+	/**
+	 * Cancels the timer and the attempts still running. A cancelled attempt was at least as
+	 * slow as its elapsed time, which is recorded so that the tail stays in the histogram.
+	 */
+	private void stop(boolean mayInterruptIfRunning) {
+		WheelTimer.Timeout t = timeout;
+		if (t != null) {
+			t.cancel();
+		}
+		long now = System.nanoTime();
+		for (int i = 0; i < attempts.length(); i++) {
+			Promise<T> attempt = attempts.get(i);
+			if (attempt != null && attempt.cancel(mayInterruptIfRunning)) {
+				hedger.record(now - starts[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges the calls to one backend: runs a call and, while no attempt has succeeded, starts a
+ * duplicate every hedge delay, up to {@code maxHedges} of them. A failed attempt is replaced
+ * right away. The first success wins and the other attempts are cancelled; the result only
+ * fails once every attempt has failed, with the first failure.
+ *
+ * <p>The hedge delay adapts to the backend. Every attempt's latency is recorded, failed ones
+ * included; once {@link #MIN_SAMPLES} have been seen the delay is their p95 instead of the
+ * initial delay, so duplicates are only sent for the slowest 5% or so of calls. The p95 is
+ * recomputed every {@link #REFRESH} samples and the histogram decays every {@link #DECAY}
+ * samples, so the delay keeps up when the backend gets faster or slower. Use one hedger per
+ * backend: calls with different latencies would blur each other's p95.
+ */
+public final class Hedger {
+	static final int MIN_SAMPLES = 20;
+	static final int REFRESH = 32;
+	static final int DECAY = 1024;
+
+	private final long initialDelayNanos;
+	private final int maxHedges;
+	private final Executor executor;
+	private final boolean adaptive;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final AtomicLong samples = new AtomicLong(0);
+	private volatile long p95;
+
+	/**
+	 * Runs attempts on the executor returned by {@link PromiseExecutors#current()}.
+	 */
+	public Hedger(Duration initialDelay, int maxHedges) {
+		this(initialDelay, maxHedges, PromiseExecutors.current());
+	}
+
+	public Hedger(Duration initialDelay, int maxHedges, Executor executor) {
+		this(initialDelay, maxHedges, executor, true);
+	}
+
+	/**
+	 * @param adaptive false to keep the initial delay for good, as
+	 * {@link Promises#hedgeWithFixedDelay} does; nothing is recorded then
+	 */
+	Hedger(Duration initialDelay, int maxHedges, Executor executor, boolean adaptive) {
+		if (maxHedges < 0) {
+			throw new IllegalArgumentException("maxHedges must not be negative: " + maxHedges);
+		}
+		this.initialDelayNanos = initialDelay.toNanos();
+		this.maxHedges = maxHedges;
+		this.executor = executor;
+		this.adaptive = adaptive;
+	}
+
+	public <T> Promise<T> hedge(Callable<T> task) {
+		return new Hedge<>(task, this).start();
+	}
+
+	/**
+	 * The delay before the next duplicate: the observed p95, or the initial delay until enough
+	 * attempts have been seen.
+	 */
+	public Duration delay() {
+		return Duration.ofNanos(delayNanos());
+	}
+
+	long delayNanos() {
+		long observed = p95;
+		return observed > 0 ? observed : initialDelayNanos;
+	}
+
+	int maxHedges() {
+		return maxHedges;
+	}
+
+	Executor executor() {
+		return executor;
+	}
+
+	void record(long nanos) {
+		if (!adaptive) {
+			return;
+		}
+		histogram.record(nanos);
+		long n = samples.incrementAndGet();
+		if (n % DECAY == 0) {
+			histogram.decay();
+		}
+		if (n == MIN_SAMPLES || n % REFRESH == 0) {
+			p95 = histogram.valueAt(95);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+/**
+ * The counterpart of {@link Promise} for an int, which it never boxes: the value is kept in an
+ * int field and handed to the functions and listeners unboxed, so a chain of {@code fmap}s
+ * over counters allocates no {@link Integer}. Boxing only happens where the value crosses over to a
+ * generic promise, in {@link #boxed()} or {@link #fmapToObj}.
+ */
+public class IntPromise extends PrimitivePromise {
+	private int value;
+
+	/**
+	 * Listener to get the value or failure info in the future.
+	 */
+	public interface Listener {
+		void onSuccess(int value);
+
+		void onFailure(Exception exception);
+	}
+
+	public IntPromise() {
+	}
+
+	/**
+	 * Lifts a value into a promise.
+	 */
+	public static IntPromise unit(int value) {
+		IntPromise promise = new IntPromise();
+		promise.notifySuccess(value);
+		return promise;
+	}
+
+	/**
+	 * Lifts a failure into a promise.
+	 */
+	public static IntPromise failure(Exception exception) {
+		IntPromise promise = new IntPromise();
+		promise.notifyFailure(exception);
+		return promise;
+	}
+
+	/**
+	 * Unboxes the value of {@code promise} once; a null value fails the returned promise.
+	 */
+	public static IntPromise from(Promise<Integer> promise) {
+		return promise.fmapToInt(Integer::intValue);
+	}
+
+	/**
+	 * Fulfills the promise, moves the state from PENDING to SUCCEEDED. It's intended
+	 * to be called inside of subclasses.
+	 */
+	protected final void notifySuccess(int value) {
+		if (claim()) {
+			this.value = value;
+			publish(SUCCEEDED);
+		}
+	}
+
+	/**
+	 * Gets the value of this promise, or 0 unless the state is SUCCEEDED.
+	 */
+	public int getValue() {
+		return isSucceeded() ? value : 0;
+	}
+
+	/**
+	 * Waits until the promise is fulfilled or rejected, see {@link Promise#await()}.
+	 *
+	 * @return the value if succeeded, or 0 if failed.
+	 */
+	public int await() {
+		awaitDone();
+		return getValue();
+	}
+
+	/**
+	 * Waits at most {@code timeout} until the promise is fulfilled or rejected.
+	 *
+	 * @return the value if succeeded, or 0 if failed.
+	 * @throws TimeoutException if the promise is still pending when the timeout elapses
+	 */
+	public int await(Duration timeout) throws TimeoutException {
+		awaitDone(timeout);
+		return getValue();
+	}
+
+	public void addListener(Listener listener) {
+		addListener(listener::onSuccess, listener::onFailure);
+	}
+
+	public void addListener(IntConsumer success, Consumer<Exception> failure) {
+		listen(() -> success.accept(value), failure);
+	}
+
+	/**
+	 * Maps the value of this promise. If {@code f} throws, the returned promise fails with the
+	 * exception.
+	 */
+	public IntPromise fmap(IntUnaryOperator f) {
+		return derive(new IntPromise(), stage -> stage.notifySuccess(f.applyAsInt(value)));
+	}
+
+	public LongPromise fmapToLong(IntToLongFunction f) {
+		return derive(new LongPromise(), stage -> stage.notifySuccess(f.applyAsLong(value)));
+	}
+
+	public DoublePromise fmapToDouble(IntToDoubleFunction f) {
+		return derive(new DoublePromise(), stage -> stage.notifySuccess(f.applyAsDouble(value)));
+	}
+
+	/**
+	 * Maps the value of this promise into a generic promise; cancelling that promise cancels
+	 * this one.
+	 */
+	public <R> Promise<R> fmapToObj(IntFunction<R> f) {
+		return deriveObj(stage -> stage.succeed(f.apply(value)));
+	}
+
+	/**
+	 * The value of this promise as a generic promise.
+	 */
+	public Promise<Integer> boxed() {
+		return fmapToObj(Integer::valueOf);
+	}
+
+	/**
+	 * {@link Promise#fmapToInt}: a listener on {@code promise} completing an int stage.
+	 */
+	static <T> IntPromise map(Promise<T> promise, ToIntFunction<? super T> f) {
+		return derive(promise, new IntPromise(), (stage, v) -> stage.notifySuccess(f.applyAsInt(v)));
+	}
+}
@@ -0,0 +1,105 @@
+package com.fava.promise;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with log-linear buckets: every power of two
+ * is split into eight sub-buckets, so a percentile is off by at most 12.5% whatever the scale,
+ * and recording is one atomic increment into a fixed array.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	void record(long nanos) {
+		counts.getAndIncrement(indexOf(Math.max(0, nanos)));
+	}
+
+	/**
+	 * A copy of the bucket counts, for {@link #valueAt(long[], double)}.
+	 */
+	long[] counts() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * The value below which {@code percentile} percent of the recorded values fall, reported as the
+	 * upper bound of its bucket, or 0 if nothing was recorded.
+	 */
+	long valueAt(double percentile) {
+		return valueAt(counts(), percentile);
+	}
+
+	/**
+	 * Halves every bucket, so that older values weigh half as much as the ones recorded from
+	 * now on. Values recorded concurrently are kept.
+	 */
+	void decay() {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			if (c > 1) {
+				counts.getAndAdd(i, -(c >>> 1));
+			}
+		}
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	static long total(long[] counts) {
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		return total;
+	}
+
+	static long valueAt(long[] counts, double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be within [0, 100]: " + percentile);
+		}
+		long total = total(counts);
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(counts.length - 1);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long sub = index & (SUB_BUCKETS - 1);
+		long next = (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+		// the top bucket would overflow
+		return next <= 0 ? Long.MAX_VALUE : next - 1;
+	}
+}
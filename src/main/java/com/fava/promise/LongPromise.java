@@ -0,0 +1,143 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.LongToIntFunction;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * The counterpart of {@link Promise} for a long, which it never boxes: the value is kept in a
+ * long field and handed to the functions and listeners unboxed, so a chain of {@code fmap}s
+ * over latencies allocates no {@link Long}. Boxing only happens where the value crosses over to a
+ * generic promise, in {@link #boxed()} or {@link #fmapToObj}.
+ */
+public class LongPromise extends PrimitivePromise {
+	private long value;
+
+	/**
+	 * Listener to get the value or failure info in the future.
+	 */
+	public interface Listener {
+		void onSuccess(long value);
+
+		void onFailure(Exception exception);
+	}
+
+	public LongPromise() {
+	}
+
+	/**
+	 * Lifts a value into a promise.
+	 */
+	public static LongPromise unit(long value) {
+		LongPromise promise = new LongPromise();
+		promise.notifySuccess(value);
+		return promise;
+	}
+
+	/**
+	 * Lifts a failure into a promise.
+	 */
+	public static LongPromise failure(Exception exception) {
+		LongPromise promise = new LongPromise();
+		promise.notifyFailure(exception);
+		return promise;
+	}
+
+	/**
+	 * Unboxes the value of {@code promise} once; a null value fails the returned promise.
+	 */
+	public static LongPromise from(Promise<Long> promise) {
+		return promise.fmapToLong(Long::longValue);
+	}
+
+	/**
+	 * Fulfills the promise, moves the state from PENDING to SUCCEEDED. It's intended
+	 * to be called inside of subclasses.
+	 */
+	protected final void notifySuccess(long value) {
+		if (claim()) {
+			this.value = value;
+			publish(SUCCEEDED);
+		}
+	}
+
+	/**
+	 * Gets the value of this promise, or 0 unless the state is SUCCEEDED.
+	 */
+	public long getValue() {
+		return isSucceeded() ? value : 0;
+	}
+
+	/**
+	 * Waits until the promise is fulfilled or rejected, see {@link Promise#await()}.
+	 *
+	 * @return the value if succeeded, or 0 if failed.
+	 */
+	public long await() {
+		awaitDone();
+		return getValue();
+	}
+
+	/**
+	 * Waits at most {@code timeout} until the promise is fulfilled or rejected.
+	 *
+	 * @return the value if succeeded, or 0 if failed.
+	 * @throws TimeoutException if the promise is still pending when the timeout elapses
+	 */
+	public long await(Duration timeout) throws TimeoutException {
+		awaitDone(timeout);
+		return getValue();
+	}
+
+	public void addListener(Listener listener) {
+		addListener(listener::onSuccess, listener::onFailure);
+	}
+
+	public void addListener(LongConsumer success, Consumer<Exception> failure) {
+		listen(() -> success.accept(value), failure);
+	}
+
+	/**
+	 * Maps the value of this promise. If {@code f} throws, the returned promise fails with the
+	 * exception.
+	 */
+	public LongPromise fmap(LongUnaryOperator f) {
+		return derive(new LongPromise(), stage -> stage.notifySuccess(f.applyAsLong(value)));
+	}
+
+	public IntPromise fmapToInt(LongToIntFunction f) {
+		return derive(new IntPromise(), stage -> stage.notifySuccess(f.applyAsInt(value)));
+	}
+
+	public DoublePromise fmapToDouble(LongToDoubleFunction f) {
+		return derive(new DoublePromise(), stage -> stage.notifySuccess(f.applyAsDouble(value)));
+	}
+
+	/**
+	 * Maps the value of this promise into a generic promise; cancelling that promise cancels
+	 * this one.
+	 */
+	public <R> Promise<R> fmapToObj(LongFunction<R> f) {
+		return deriveObj(stage -> stage.succeed(f.apply(value)));
+	}
+
+	/**
+	 * The value of this promise as a generic promise.
+	 */
+	public Promise<Long> boxed() {
+		return fmapToObj(Long::valueOf);
+	}
+
+	/**
+	 * {@link Promise#fmapToLong}: a listener on {@code promise} completing a long stage.
+	 */
+	static <T> LongPromise map(Promise<T> promise, ToLongFunction<? super T> f) {
+		return derive(promise, new LongPromise(), (stage, v) -> stage.notifySuccess(f.applyAsLong(v)));
+	}
+}
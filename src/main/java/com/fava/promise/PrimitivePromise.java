@@ -0,0 +1,330 @@
+package com.fava.promise;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Common part of {@link IntPromise}, {@link LongPromise} and {@link DoublePromise}: the state,
+ * the failure, the listeners, waiting and the wiring of derived stages. Subclasses keep the
+ * value in a primitive field and only add the typed accessors, listeners and maps.
+ *
+ * <p>A completer claims the promise by moving it from PENDING to COMPLETING, writes the value
+ * or the failure, then publishes the final status. Listeners are {@link Sink}s kept in a stack
+ * shaped like the one of {@link Promise} and dispatched through the same trampoline, with the
+ * completed source itself as their value, so they read the result unboxed and deep chains of
+ * stages don't grow the stack.
+ */
+abstract class PrimitivePromise {
+	static final int PENDING = 0;
+	static final int COMPLETING = 1;
+	static final int SUCCEEDED = 2;
+	static final int FAILED = 3;
+	static final int CANCELLED = 4;
+
+	private static final Object CLOSED = new Object();
+	private static final VarHandle STATUS;
+	private static final VarHandle STACK;
+	private static final VarHandle DONE;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			STATUS = l.findVarHandle(PrimitivePromise.class, "status", int.class);
+			STACK = l.findVarHandle(PrimitivePromise.class, "stack", Object.class);
+			DONE = l.findVarHandle(PrimitivePromise.class, "done", Promise.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile int status;
+	/**
+	 * null, a single {@link Sink}, a stack built by {@link Promise#push}, or {@link #CLOSED}.
+	 */
+	private volatile Object stack;
+	/**
+	 * Created by the first thread that waits; completed along with this promise.
+	 */
+	private volatile Promise<Void> done;
+	/**
+	 * Written by the completer before it publishes the status.
+	 */
+	private Exception failure;
+	/**
+	 * Where {@link #cancel(boolean)} propagates to while PENDING: the {@link Promise} or
+	 * primitive promise this one is mapped from.
+	 */
+	volatile Object upstream;
+
+	public Promise.State state() {
+		switch (status) {
+			case SUCCEEDED:
+				return Promise.State.SUCCEEDED;
+			case FAILED:
+				return Promise.State.FAILED;
+			case CANCELLED:
+				return Promise.State.CANCELLED;
+			default:
+				return Promise.State.PENDING;
+		}
+	}
+
+	/**
+	 * Gets the failure of this promise, or null unless the state is FAILED or CANCELLED.
+	 */
+	public Exception getException() {
+		return status > SUCCEEDED ? failure : null;
+	}
+
+	/**
+	 * Cancels the promise if it is still pending, and the promise it is mapped from; its
+	 * listeners see a {@link CancellationException}.
+	 *
+	 * @return false if the promise was already done
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Object up = this;
+		// walk the chain iteratively, like Promise#cancel
+		while (up instanceof PrimitivePromise) {
+			PrimitivePromise p = (PrimitivePromise) up;
+			if (!p.claim()) {
+				return p != this;
+			}
+			p.failure = new CancellationException("Promise cancelled");
+			up = p.upstream;
+			p.publish(CANCELLED);
+		}
+		if (up instanceof Promise) {
+			((Promise<?>) up).cancel(mayInterruptIfRunning);
+		}
+		return true;
+	}
+
+	/**
+	 * Rejects the promise, moves the state from PENDING to FAILED. It's intended to be
+	 * called inside of subclasses.
+	 */
+	protected final void notifyFailure(Exception exception) {
+		if (claim()) {
+			failure = exception;
+			publish(FAILED);
+		}
+	}
+
+	/**
+	 * Moves the promise from PENDING to COMPLETING. Only the caller that gets true may write
+	 * the result, then call {@link #publish}.
+	 */
+	final boolean claim() {
+		return STATUS.compareAndSet(this, PENDING, COMPLETING);
+	}
+
+	final void publish(int outcome) {
+		// the volatile write publishes the value or failure written after claim()
+		status = outcome;
+		upstream = null;
+		Object head = STACK.getAndSet(this, CLOSED);
+		if (head != null) {
+			Promise.fire(head, this);
+		}
+		Promise<Void> waiting = done;
+		if (waiting != null) {
+			waiting.notifySuccess(null);
+		}
+	}
+
+	final boolean isSucceeded() {
+		return status == SUCCEEDED;
+	}
+
+	private void addSink(Sink sink) {
+		Object s = stack;
+		for (; ; ) {
+			if (s == CLOSED) {
+				Promise.fire(sink, this);
+				return;
+			}
+			Object witness = STACK.compareAndExchange(this, s, Promise.push(s, sink));
+			if (witness == s) {
+				return;
+			}
+			s = witness;
+		}
+	}
+
+	/**
+	 * Runs {@code succeeded} once this promise succeeds, so that it reads the value unboxed,
+	 * or {@code failed} once it fails.
+	 */
+	final void listen(Runnable succeeded, Consumer<Exception> failed) {
+		addSink(new Sink() {
+			@Override
+			void succeeded() {
+				succeeded.run();
+			}
+
+			@Override
+			void failed(Exception exception) {
+				failed.accept(exception);
+			}
+		});
+	}
+
+	/**
+	 * Makes {@code stage} a stage derived from this promise: {@code succeeded} completes it
+	 * from the value of this promise, a failure of either fails it, and cancelling it cancels
+	 * this promise.
+	 */
+	final <S extends PrimitivePromise> S derive(S stage, Consumer<S> succeeded) {
+		stage.upstream = this;
+		addSink(new Sink() {
+			@Override
+			void succeeded() {
+				try {
+					succeeded.accept(stage);
+				} catch (RuntimeException e) {
+					stage.notifyFailure(e);
+				}
+			}
+
+			@Override
+			void failed(Exception exception) {
+				stage.notifyFailure(exception);
+			}
+		});
+		return stage;
+	}
+
+	/**
+	 * Like {@link #derive} for a generic stage, see the {@code fmapToObj} methods.
+	 */
+	final <R> Promise<R> deriveObj(Consumer<ObjStage<R>> succeeded) {
+		ObjStage<R> stage = new ObjStage<>(this);
+		addSink(new Sink() {
+			@Override
+			void succeeded() {
+				try {
+					succeeded.accept(stage);
+				} catch (RuntimeException e) {
+					stage.fail(e);
+				}
+			}
+
+			@Override
+			void failed(Exception exception) {
+				stage.fail(exception);
+			}
+		});
+		return stage;
+	}
+
+	/**
+	 * Makes {@code stage} a primitive stage derived from a generic promise, for the
+	 * {@code Promise.fmapTo*} methods.
+	 */
+	static <T, S extends PrimitivePromise> S derive(Promise<T> promise, S stage, BiConsumer<S, T> succeeded) {
+		stage.upstream = promise;
+		promise.addListener(new Promise.Listener<>() {
+			@Override
+			public void onSuccess(T value) {
+				try {
+					succeeded.accept(stage, value);
+				} catch (RuntimeException e) {
+					stage.notifyFailure(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				stage.notifyFailure(exception);
+			}
+		});
+		return stage;
+	}
+
+	/**
+	 * Waits until the promise is done, the way {@link Promise#await()} does.
+	 */
+	final void awaitDone() {
+		if (status <= COMPLETING) {
+			waiting().await();
+		}
+	}
+
+	final void awaitDone(Duration timeout) throws TimeoutException {
+		if (status <= COMPLETING) {
+			waiting().await(timeout);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Promise<Void> waiting() {
+		Promise<Void> waiting = done;
+		if (waiting == null) {
+			Promise<Void> created = new Promise<>();
+			waiting = (Promise<Void>) DONE.compareAndExchange(this, null, created);
+			if (waiting == null) {
+				waiting = created;
+			}
+		}
+		if (status > COMPLETING) {
+			// published before our promise was visible, publish() may have missed it
+			waiting.notifySuccess(null);
+		}
+		return waiting;
+	}
+
+	/**
+	 * A listener of a primitive promise, queued on the trampoline with its completed source as
+	 * the value. {@link #succeeded()} reads the unboxed value from the source it was added to.
+	 */
+	private abstract static class Sink implements Promise.Listener<PrimitivePromise> {
+		@Override
+		public final void onSuccess(PrimitivePromise source) {
+			if (source.isSucceeded()) {
+				succeeded();
+			} else {
+				failed(source.failure);
+			}
+		}
+
+		@Override
+		public final void onFailure(Exception exception) {
+			failed(exception);
+		}
+
+		abstract void succeeded();
+
+		abstract void failed(Exception exception);
+	}
+
+	/**
+	 * The {@link Promise} returned by the {@code fmapToObj} methods, cancelling its primitive
+	 * source when cancelled.
+	 */
+	static final class ObjStage<R> extends Promise<R> {
+		private final PrimitivePromise source;
+
+		ObjStage(PrimitivePromise source) {
+			this.source = source;
+		}
+
+		void succeed(R value) {
+			notifySuccess(value);
+		}
+
+		void fail(Exception exception) {
+			notifyFailure(exception);
+		}
+
+		@Override
+		void onCancelled(boolean mayInterruptIfRunning) {
+			source.cancel(mayInterruptIfRunning);
+		}
+	}
+}
@@ -4,13 +4,24 @@ import com.fava.Functions.IF1;
 import com.fava.functor.Functor;
 import com.fava.monad.Monad;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * An instance of {@code Promise<T>} represents a value of type T that may be
@@ -21,58 +32,126 @@ import java.util.function.Consumer;
  * asynchronous values, such as asynchronous HTTP response or asynchronous
  * database query result.
  *
+ * <p>A promise is also a {@link CompletionStage}, so it can be handed to and combined with
+ * JDK APIs directly; see {@link #toCompletableFuture()} and {@link #fromCompletionStage}.
+ * Unlike {@link CompletableFuture}, failures reach dependent stages as they are, without a
+ * {@link CompletionException} wrapper.
+ *
  * <p>
  * <strong>THIS IS JUST DEMO FOR PROMISE, YOU SHOULD USE </strong> {@link CompletableFuture}
  * </p>
  *
  * @author dagang.wei (weidagang@gmail.com)
  */
-public class Promise<T> implements Functor<T>, Monad<T> {
-	private static final ExecutorService ASYNC_POOL;
-	// TODO: this barrier may be not necessary.
-	private static final byte[] lock = new byte[0];
+public class Promise<T> implements Functor<T>, Monad<T>, CompletionStage<T> {
+	/**
+	 * Marks the listener stack of a completed promise. Listeners that observe it
+	 * are dispatched immediately instead of being pushed.
+	 */
+	private static final Object CLOSED = new Object();
+	/**
+	 * Encodes a successful {@code null} value, so that a {@code null} result always means PENDING.
+	 */
+	private static final AltResult NIL = new AltResult(null);
+	private static final VarHandle RESULT;
+	private static final VarHandle STACK;
+	private static final VarHandle WAITERS;
 
 	static {
-		int processors = Runtime.getRuntime().availableProcessors();
-		ASYNC_POOL = Executors.newFixedThreadPool(processors * 100);
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			RESULT = l.findVarHandle(Promise.class, "result", Object.class);
+			STACK = l.findVarHandle(Promise.class, "stack", Object.class);
+			WAITERS = l.findVarHandle(Promise.class, "waiters", Waiter.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Treiber stack of the threads parked in await, dropped as a whole on completion.
+	 */
+	private volatile Waiter waiters;
+	/**
+	 * {@code null} while PENDING, then either the value itself or an {@link AltResult}.
+	 * It only ever moves away from {@code null} once, by CAS.
+	 */
+	private volatile Object result;
+	/**
+	 * Treiber stack of pending listeners: {@code null}, a single {@link Listener} (the
+	 * common case, no node allocated), a {@link ListenerNode} chain, or {@link #CLOSED}.
+	 */
+	private volatile Object stack;
+	/**
+	 * Where {@link #cancel(boolean)} propagates to while PENDING: the promise this one is
+	 * derived from, or the {@link AsyncTask} that will fulfill it.
+	 */
+	private volatile Object upstream;
+	/**
+	 * Creation record while {@link PromiseMetrics} is enabled, null otherwise.
+	 */
+	private final PromiseMetrics.Trace trace;
+	/**
+	 * The loop this promise was created on, which alone touches its listener stack and runs
+	 * its listeners; null for a promise created off any {@link EventLoop}.
+	 */
+	private final EventLoop loop;
+
+	public Promise() {
+		trace = PromiseMetrics.enabled ? PromiseMetrics.created(this) : null;
+		loop = EventLoop.current();
 	}
 
-	private final Deque<Thread> threads = new ConcurrentLinkedDeque<>();
-	protected T value;
-	protected Exception exception;
-	protected List<Listener<T>> listeners = new ArrayList<>();
-	private volatile State state = State.PENDING;
+	private Promise(Object result) {
+		this.result = result;
+		this.stack = CLOSED;
+		this.trace = null;
+		this.loop = null;
+	}
 
 	/**
 	 * Lifts a value into a promise.
 	 */
 	public static <T> Promise<T> unit(T value) {
-		Promise<T> promise = new Promise<>();
-		promise.state = State.SUCCEEDED;
-		promise.value = value;
-		return promise;
+		return new Promise<>(value == null ? NIL : value);
 	}
 
 	/**
 	 * Lifts a failure into a promise.
 	 */
 	public static <T> Promise<T> failure(Exception exception) {
-		Promise<T> promise = new Promise<>();
-		promise.state = State.FAILED;
-		promise.exception = exception;
+		return new Promise<>(new AltResult(exception));
+	}
+
+	/**
+	 * Views a completion stage as a promise. A promise is returned as is; otherwise the returned
+	 * promise listens to the stage without an executor hop, a {@link CompletionException} is
+	 * unwrapped to its cause, and cancelling the promise cancels the stage if it is a
+	 * {@link Future}, such as a {@link CompletableFuture}.
+	 */
+	public static <T> Promise<T> fromCompletionStage(CompletionStage<T> stage) {
+		if (stage instanceof Promise) {
+			return (Promise<T>) stage;
+		}
+		StagePromise<T> promise = new StagePromise<>(stage);
+		stage.whenComplete(promise);
 		return promise;
 	}
 
+	/**
+	 * Runs the task on the executor returned by {@link PromiseExecutors#current()}.
+	 */
 	public static <T> Promise<T> fulfillInAsync(final Callable<T> task) {
+		return fulfillInAsync(task, PromiseExecutors.current());
+	}
+
+	/**
+	 * Runs the task on the given executor. If the executor rejects the task, the returned
+	 * promise fails with the rejection.
+	 */
+	public static <T> Promise<T> fulfillInAsync(final Callable<T> task, final Executor executor) {
 		final Promise<T> promise = new Promise<>();
-		ASYNC_POOL.execute(() -> {
-			try {
-				T value = task.call();
-				promise.notifySuccess(value);
-			} catch (Exception e) {
-				promise.notifyFailure(e);
-			}
-		});
+		promise.fulfillOn(task, executor, null);
 		return promise;
 	}
 
@@ -92,7 +171,64 @@ public class Promise<T> implements Functor<T>, Monad<T> {
 	 * Returns the current state of the promise.
 	 */
 	public State state() {
-		return state;
+		Object r = result;
+		if (r == null) {
+			return State.PENDING;
+		}
+		if (!(r instanceof AltResult) || ((AltResult) r).exception == null) {
+			return State.SUCCEEDED;
+		}
+		return ((AltResult) r).exception instanceof CancellationException ? State.CANCELLED : State.FAILED;
+	}
+
+	/**
+	 * Cancels the promise if it is still pending; its listeners see a {@link CancellationException}.
+	 *
+	 * <p>The cancellation travels upstream: a promise derived by {@link #fmap}, {@link #then} or
+	 * {@link Promises#join} cancels the promise it was derived from, and a promise created by
+	 * {@link #fulfillInAsync} stops its task. A task that hasn't started yet never runs; a running
+	 * one is interrupted if {@code mayInterruptIfRunning} is set. Note that cancelling upstream also
+	 * affects every other promise derived from the same source.
+	 *
+	 * @return true if this call moved the promise to CANCELLED
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(new AltResult(new CancellationException("Promise cancelled")))) {
+			return false;
+		}
+		cancelUpstream(this, mayInterruptIfRunning);
+		return true;
+	}
+
+	/**
+	 * Carries on a cancellation that {@code p} has won: runs its hook and cancels what it was
+	 * derived from, iteratively so that a long fmap chain doesn't recurse. The part of the walk
+	 * that belongs to a loop-bound promise runs on its loop.
+	 */
+	private static void cancelUpstream(Promise<?> p, boolean mayInterruptIfRunning) {
+		for (; ; ) {
+			if (p.loop != null && !p.loop.inEventLoop()) {
+				Promise<?> bound = p;
+				if (p.loop.offer(() -> cancelUpstream(bound, mayInterruptIfRunning))) {
+					return;
+				}
+			}
+			// read upstream only after completing, see dependOn
+			Object up = p.upstream;
+			p.upstream = null;
+			p.onCancelled(mayInterruptIfRunning);
+			if (up instanceof AsyncTask) {
+				((AsyncTask<?>) up).cancel(mayInterruptIfRunning);
+				return;
+			}
+			if (!(up instanceof Promise)) {
+				return;
+			}
+			p = (Promise<?>) up;
+			if (!p.complete(new AltResult(new CancellationException("Promise cancelled")))) {
+				return;
+			}
+		}
 	}
 
 	/**
@@ -101,24 +237,140 @@ public class Promise<T> implements Functor<T>, Monad<T> {
 	 * @return the value if succeeded, or null if failed.
 	 */
 	public T await() {
-		// TODO: need run in ForkJoinPool?
-		synchronized (lock) {
-			// In case notifyXxx executed before await
-			if (state != State.PENDING) {
-				return state == State.SUCCEEDED ? value : null;
+		if (result == null) {
+			// listeners queued on this thread may be the ones that complete us
+			Trampoline.current().flush();
+			if (result == null) {
+				block(false, 0L);
+			}
+		}
+		return getValue();
+	}
+
+	/**
+	 * Waits at most {@code timeout} until the promise is fulfilled or rejected.
+	 *
+	 * @return the value if succeeded, or null if failed.
+	 * @throws TimeoutException if the promise is still pending when the timeout elapses
+	 */
+	public T await(Duration timeout) throws TimeoutException {
+		if (result == null) {
+			long deadline = System.nanoTime() + timeout.toNanos();
+			Trampoline.current().flush();
+			if (result == null) {
+				block(true, deadline);
+			}
+			if (result == null) {
+				throw new TimeoutException("Promise still pending after " + timeout);
+			}
+		}
+		return getValue();
+	}
+
+	/**
+	 * Like {@link #await()}, but helps instead of only waiting: if this promise is to be
+	 * fulfilled, directly or through the stages it was derived from, by a
+	 * {@link #fulfillInAsync} task that no thread has started yet, the caller runs that task
+	 * itself. The executor skips it when its turn comes. Tasks queued on an {@link EventLoop}
+	 * or a {@link StripedExecutor} lane are never run by the caller, since that would break the
+	 * order and the thread they were queued for.
+	 *
+	 * @return the value if succeeded, or null if failed.
+	 */
+	public T join() {
+		if (result == null) {
+			Object up = upstream;
+			while (up instanceof Promise) {
+				up = ((Promise<?>) up).upstream;
+			}
+			if (up instanceof AsyncTask) {
+				((AsyncTask<?>) up).help();
 			}
 		}
+		return await();
+	}
 
-		// support multiple threads waiting
-		threads.add(Thread.currentThread());
+	/**
+	 * Parks the caller until the promise completes or, if {@code timed}, until {@code deadline}.
+	 * Parking goes through {@link ForkJoinPool#managedBlock}, so a pool worker waiting here
+	 * lets its pool activate a spare thread instead of losing parallelism. Interrupts don't
+	 * end the wait; the interrupt status is restored on return.
+	 */
+	private void block(boolean timed, long deadline) {
+		if (loop != null && loop.inEventLoop()) {
+			throw new IllegalStateException("Awaiting a promise on its own event loop would deadlock");
+		}
+		Waiter waiter = new Waiter(this, timed, deadline);
+		Waiter head;
+		do {
+			head = waiters;
+			waiter.next = head;
+		} while (!WAITERS.compareAndSet(this, head, waiter));
+		try {
+			ForkJoinPool.managedBlock(waiter);
+		} catch (InterruptedException e) {
+			// Waiter.block never throws, but keep the status if it ever does
+			waiter.interrupted = true;
+		}
+		if (result == null) {
+			// timed out, completion won't drop the node for us
+			removeWaiter(waiter);
+		} else {
+			waiter.thread = null;
+		}
+		if (waiter.interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-		while (state == State.PENDING) {
-			LockSupport.park(this);
+	/**
+	 * Unlinks the node of a waiter that gave up, along with any other node whose thread left.
+	 */
+	private void removeWaiter(Waiter node) {
+		node.thread = null;
+		retry:
+		for (;;) {
+			for (Waiter pred = null, q = waiters, next; q != null; q = next) {
+				next = q.next;
+				if (q.thread != null) {
+					pred = q;
+				} else if (pred != null) {
+					pred.next = next;
+					if (pred.thread == null) {
+						// pred left meanwhile, start over
+						continue retry;
+					}
+				} else if (!WAITERS.compareAndSet(this, q, next)) {
+					continue retry;
+				}
+			}
+			return;
 		}
+	}
+
+	/**
+	 * Rejects the promise with a {@link TimeoutException} if it is still pending after
+	 * {@code timeout}. The deadline is tracked by the shared {@link WheelTimer}.
+	 */
+	public Promise<T> orTimeout(Duration timeout) {
+		return onTimeout(() -> notifyFailure(new TimeoutException("Promise timed out after " + timeout)), timeout);
+	}
 
-		threads.remove();
+	/**
+	 * Fulfills the promise with {@code value} if it is still pending after {@code timeout}.
+	 * The deadline is tracked by the shared {@link WheelTimer}.
+	 */
+	public Promise<T> completeOnTimeout(T value, Duration timeout) {
+		return onTimeout(() -> notifySuccess(value), timeout);
+	}
 
-		return state == State.SUCCEEDED ? value : null;
+	private Promise<T> onTimeout(Runnable action, Duration timeout) {
+		if (result == null) {
+			WheelTimer.Timeout t = WheelTimer.shared().schedule(action, timeout.toNanos(), TimeUnit.NANOSECONDS);
+			// drop the timer's reference to this promise as soon as it completes
+			addListener(v -> t.cancel(), e -> t.cancel());
+		}
+		return this;
 	}
 
 	public T get() {
@@ -130,8 +382,10 @@ public class Promise<T> implements Functor<T>, Monad<T> {
 	 *
 	 * <p>Precondition: state == SUCCEEDED || state == FAILED
 	 */
+	@SuppressWarnings("unchecked")
 	public T getValue() {
-		return value;
+		Object r = result;
+		return r instanceof AltResult ? null : (T) r;
 	}
 
 	protected final void addListener(Consumer<T> success, Consumer<Exception> failure) {
@@ -154,131 +408,1334 @@ public class Promise<T> implements Functor<T>, Monad<T> {
 	 * the listener will be called immediately.
 	 */
 	protected final void addListener(Listener<T> listener) {
-		synchronized (lock) {
-			switch (state) {
-				case SUCCEEDED:
-					listener.onSuccess(value);
-					break;
-				case FAILED:
-					listener.onFailure(exception);
-					break;
-				case PENDING:
-					listeners.add(listener);
-					break;
+		EventLoop here = EventLoop.current();
+		if (here != loop) {
+			if (here != null) {
+				Object r = result;
+				if (r != null) {
+					// already done, run it right here on the caller's loop
+					dispatch(listener, r);
+					return;
+				}
+				listener = new LoopHop<>(listener, here);
+			}
+			if (loop != null) {
+				Listener<T> l = listener;
+				if (loop.offer(() -> addListener(l))) {
+					return;
+				}
+			}
+		} else if (loop != null) {
+			// on our own loop, nobody else touches the stack
+			Object s = STACK.get(this);
+			if (s == CLOSED) {
+				dispatch(listener, result);
+			} else {
+				STACK.set(this, push(s, listener));
+			}
+			return;
+		}
+		Object s = stack;
+		for (; ; ) {
+			if (s == CLOSED) {
+				dispatch(listener, result);
+				return;
+			}
+			Object pushed = s == null ? listener : new ListenerNode<>(listener, s);
+			Object witness = STACK.compareAndExchange(this, s, pushed);
+			if (witness == s) {
+				return;
 			}
+			s = witness;
 		}
 	}
 
+	/**
+	 * Maps the value of this promise to an unboxed int, see {@link IntPromise}.
+	 */
+	public IntPromise fmapToInt(ToIntFunction<? super T> f) {
+		return IntPromise.map(this, f);
+	}
+
+	/**
+	 * Maps the value of this promise to an unboxed long, see {@link LongPromise}.
+	 */
+	public LongPromise fmapToLong(ToLongFunction<? super T> f) {
+		return LongPromise.map(this, f);
+	}
+
+	/**
+	 * Maps the value of this promise to an unboxed double, see {@link DoublePromise}.
+	 */
+	public DoublePromise fmapToDouble(ToDoubleFunction<? super T> f) {
+		return DoublePromise.map(this, f);
+	}
+
+	/**
+	 * Maps the value of this promise. The returned promise is its own listener on this one, so
+	 * a stage costs one object; a chain of fmaps completes in a single loop, see
+	 * {@link MapPromise}. If {@code f} throws, the returned promise fails with the exception.
+	 */
 	@Override
 	public <R> Promise<R> fmap(IF1<T, R> f) {
-		final Promise<R> promiseR = new Promise<>() {
-		};
+		MapPromise<T, R> stage = new MapPromise<>(f);
+		Promise<R> promiseR = stage;
+		promiseR.upstream = this;
+		this.addListener(stage);
+		return promiseR;
+	}
 
-		this.addListener(new Listener<>() {
-			@Override
-			public void onSuccess(T value) {
-				promiseR.notifySuccess(f.apply(value));
+	@Override
+	public <R> Promise<R> then(IF1<T, ? extends Monad<R>> f) {
+		// promiseR is the composition of "this" promise and "that promise.
+		BindPromise<T, R> bind = new BindPromise<>(f);
+		Promise<R> promiseR = bind;
+		promiseR.upstream = this;
+		this.addListener(bind);
+		return promiseR;
+	}
+
+	/**
+	 * Like {@link #fmap}, but {@code f} runs on {@code executor} instead of the thread that
+	 * completes this promise, so an expensive mapper never stalls that thread.
+	 */
+	public <R> Promise<R> fmapAsync(IF1<T, R> f, Executor executor) {
+		return stage(executor, false, (v, e) -> {
+			if (e != null) {
+				throw e;
 			}
+			return f.apply(v);
+		});
+	}
 
-			@Override
-			public void onFailure(Exception exception) {
-				promiseR.notifyFailure(exception);
+	/**
+	 * Like {@link #then}, but {@code f} runs on {@code executor} instead of the thread that
+	 * completes this promise.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> Promise<R> thenAsync(IF1<T, ? extends Monad<R>> f, Executor executor) {
+		Promise<Promise<R>> bound = stage(executor, false, (v, e) -> {
+			if (e != null) {
+				throw e;
 			}
+			return (Promise<R>) f.apply(v);
 		});
+		return bound.then(that -> that);
+	}
 
-		return promiseR;
+	/**
+	 * Returns a promise with the outcome of this one, whose listeners run where {@code policy}
+	 * says: on the thread that completes this promise, on {@code executor}, or on the completing
+	 * thread unless that thread is already deep into running other listeners, in which case
+	 * they are handed off to {@code executor}. {@code executor} may be null for {@link Dispatch#INLINE}.
+	 * Cancelling the returned promise cancels this one.
+	 */
+	public Promise<T> dispatchOn(Dispatch policy, Executor executor) {
+		if (policy != Dispatch.INLINE && executor == null) {
+			throw new NullPointerException("executor");
+		}
+		return stage(policy == Dispatch.INLINE ? null : executor, policy == Dispatch.INLINE_IF_SHALLOW, (v, e) -> {
+			if (e != null) {
+				throw e;
+			}
+			return v;
+		});
 	}
 
 	@Override
-	public <R> Promise<R> then(IF1<T, ? extends Monad<R>> f) {
-		// promiseR is the composition of "this" promise and "that promise.
-		final Promise<R> promiseR = new Promise<>() {
-		};
+	public <U> Promise<U> thenApply(Function<? super T, ? extends U> fn) {
+		return fmap(fn::apply);
+	}
 
-		// callback for "this" promise
-		this.addListener(new Listener<>() {
-			@Override
-			public void onSuccess(T value) {
-				Promise<R> that = (Promise<R>) f.apply(value);
-				// callback for "that" promise
-				that.addListener(new Listener<>() {
-					@Override
-					public void onSuccess(R value) {
-						promiseR.notifySuccess(value);
-					}
+	@Override
+	public <U> Promise<U> thenApplyAsync(Function<? super T, ? extends U> fn) {
+		return thenApplyAsync(fn, PromiseExecutors.current());
+	}
 
-					@Override
-					public void onFailure(Exception exception) {
-						promiseR.notifyFailure(exception);
-					}
-				});
+	@Override
+	public <U> Promise<U> thenApplyAsync(Function<? super T, ? extends U> fn, Executor executor) {
+		return stage(executor, (v, e) -> {
+			if (e != null) {
+				throw e;
 			}
+			return fn.apply(v);
+		});
+	}
 
-			@Override
-			public void onFailure(Exception exception) {
-				promiseR.notifyFailure(exception);
+	@Override
+	public Promise<Void> thenAccept(Consumer<? super T> action) {
+		return thenAcceptAsync(action, null);
+	}
+
+	@Override
+	public Promise<Void> thenAcceptAsync(Consumer<? super T> action) {
+		return thenAcceptAsync(action, PromiseExecutors.current());
+	}
+
+	@Override
+	public Promise<Void> thenAcceptAsync(Consumer<? super T> action, Executor executor) {
+		return stage(executor, (v, e) -> {
+			if (e != null) {
+				throw e;
 			}
+			action.accept(v);
+			return null;
 		});
+	}
 
-		return promiseR;
+	@Override
+	public Promise<Void> thenRun(Runnable action) {
+		return thenRunAsync(action, null);
 	}
 
 	@Override
-	public boolean equals(Object obj) {
-		if (!(obj instanceof Promise)) {
-			return false;
-		}
-		Promise<?> that = (Promise<?>) obj;
+	public Promise<Void> thenRunAsync(Runnable action) {
+		return thenRunAsync(action, PromiseExecutors.current());
+	}
 
-		Object v1 = this.await();
-		Object v2 = that.await();
+	@Override
+	public Promise<Void> thenRunAsync(Runnable action, Executor executor) {
+		return stage(executor, (v, e) -> {
+			if (e != null) {
+				throw e;
+			}
+			action.run();
+			return null;
+		});
+	}
 
-		return this.state == that.state && (Objects.equals(v1, v2));
+	@Override
+	public <U, V> Promise<V> thenCombine(CompletionStage<? extends U> other,
+	                                     BiFunction<? super T, ? super U, ? extends V> fn) {
+		return thenCombineAsync(other, fn, null);
 	}
 
-	/**
-	 * Fulfills the promise, moves the state from PENDING to SUCCEED. It's intended
-	 * to be called inside of subclasses.
-	 */
-	protected final void notifySuccess(T value) {
-		synchronized (lock) {
-			this.value = value;
-			this.state = State.SUCCEEDED;
-		}
+	@Override
+	public <U, V> Promise<V> thenCombineAsync(CompletionStage<? extends U> other,
+	                                          BiFunction<? super T, ? super U, ? extends V> fn) {
+		return thenCombineAsync(other, fn, PromiseExecutors.current());
+	}
 
-		for (Listener<T> listener : listeners) {
-			listener.onSuccess(value);
-		}
-		tryComplete();
+	@Override
+	public <U, V> Promise<V> thenCombineAsync(CompletionStage<? extends U> other,
+	                                          BiFunction<? super T, ? super U, ? extends V> fn, Executor executor) {
+		Promise<? extends U> that = fromCompletionStage(other);
+		return this.<V>then(v -> that.stage(executor, (u, e) -> {
+			if (e != null) {
+				throw e;
+			}
+			return fn.apply(v, u);
+		}));
 	}
 
-	void tryComplete() {
-		this.threads.forEach(LockSupport::unpark);
+	@Override
+	public <U> Promise<Void> thenAcceptBoth(CompletionStage<? extends U> other,
+	                                        BiConsumer<? super T, ? super U> action) {
+		return thenAcceptBothAsync(other, action, null);
 	}
 
-	/**
-	 * Rejects the promise, moves the state from PENDING to FAILED. It's intended to be
-	 * called inside of subclasses.
-	 */
-	protected final void notifyFailure(Exception exception) {
-		synchronized (lock) {
-			this.exception = exception;
-			this.state = State.FAILED;
-		}
+	@Override
+	public <U> Promise<Void> thenAcceptBothAsync(CompletionStage<? extends U> other,
+	                                             BiConsumer<? super T, ? super U> action) {
+		return thenAcceptBothAsync(other, action, PromiseExecutors.current());
+	}
 
-		for (Listener<T> listener : listeners) {
-			listener.onFailure(exception);
-		}
-		tryComplete();
+	@Override
+	public <U> Promise<Void> thenAcceptBothAsync(CompletionStage<? extends U> other,
+	                                             BiConsumer<? super T, ? super U> action, Executor executor) {
+		return thenCombineAsync(other, (v, u) -> {
+			action.accept(v, u);
+			return null;
+		}, executor);
 	}
 
-	/**
-	 * States of a promise.
-	 */
-	public enum State {
-		PENDING,
-		SUCCEEDED,
-		FAILED,
+	@Override
+	public Promise<Void> runAfterBoth(CompletionStage<?> other, Runnable action) {
+		return runAfterBothAsync(other, action, null);
+	}
+
+	@Override
+	public Promise<Void> runAfterBothAsync(CompletionStage<?> other, Runnable action) {
+		return runAfterBothAsync(other, action, PromiseExecutors.current());
+	}
+
+	@Override
+	public Promise<Void> runAfterBothAsync(CompletionStage<?> other, Runnable action, Executor executor) {
+		return thenCombineAsync(other, (v, u) -> {
+			action.run();
+			return null;
+		}, executor);
+	}
+
+	@Override
+	public <U> Promise<U> applyToEither(CompletionStage<? extends T> other, Function<? super T, U> fn) {
+		return applyToEitherAsync(other, fn, null);
+	}
+
+	@Override
+	public <U> Promise<U> applyToEitherAsync(CompletionStage<? extends T> other, Function<? super T, U> fn) {
+		return applyToEitherAsync(other, fn, PromiseExecutors.current());
+	}
+
+	@Override
+	public <U> Promise<U> applyToEitherAsync(CompletionStage<? extends T> other, Function<? super T, U> fn,
+	                                         Executor executor) {
+		return either(other).stage(executor, (v, e) -> {
+			if (e != null) {
+				throw e;
+			}
+			return fn.apply(v);
+		});
+	}
+
+	@Override
+	public Promise<Void> acceptEither(CompletionStage<? extends T> other, Consumer<? super T> action) {
+		return acceptEitherAsync(other, action, null);
+	}
+
+	@Override
+	public Promise<Void> acceptEitherAsync(CompletionStage<? extends T> other, Consumer<? super T> action) {
+		return acceptEitherAsync(other, action, PromiseExecutors.current());
+	}
+
+	@Override
+	public Promise<Void> acceptEitherAsync(CompletionStage<? extends T> other, Consumer<? super T> action,
+	                                       Executor executor) {
+		return either(other).thenAcceptAsync(action, executor);
+	}
+
+	@Override
+	public Promise<Void> runAfterEither(CompletionStage<?> other, Runnable action) {
+		return runAfterEitherAsync(other, action, null);
+	}
+
+	@Override
+	public Promise<Void> runAfterEitherAsync(CompletionStage<?> other, Runnable action) {
+		return runAfterEitherAsync(other, action, PromiseExecutors.current());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Promise<Void> runAfterEitherAsync(CompletionStage<?> other, Runnable action, Executor executor) {
+		return ((Promise<Object>) this).either(other).thenRunAsync(action, executor);
+	}
+
+	@Override
+	public <U> Promise<U> thenCompose(Function<? super T, ? extends CompletionStage<U>> fn) {
+		return then(v -> fromCompletionStage(fn.apply(v)));
+	}
+
+	@Override
+	public <U> Promise<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn) {
+		return thenComposeAsync(fn, PromiseExecutors.current());
+	}
+
+	@Override
+	public <U> Promise<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn,
+	                                       Executor executor) {
+		Promise<Promise<U>> composed = stage(executor, (v, e) -> {
+			if (e != null) {
+				throw e;
+			}
+			return fromCompletionStage(fn.apply(v));
+		});
+		return composed.then(that -> that);
+	}
+
+	@Override
+	public <U> Promise<U> handle(BiFunction<? super T, Throwable, ? extends U> fn) {
+		return handleAsync(fn, null);
+	}
+
+	@Override
+	public <U> Promise<U> handleAsync(BiFunction<? super T, Throwable, ? extends U> fn) {
+		return handleAsync(fn, PromiseExecutors.current());
+	}
+
+	@Override
+	public <U> Promise<U> handleAsync(BiFunction<? super T, Throwable, ? extends U> fn, Executor executor) {
+		return stage(executor, fn::apply);
+	}
+
+	/**
+	 * The returned promise has the outcome of this one, unless {@code action} throws after a
+	 * success; a failure of this promise wins over one thrown by {@code action}.
+	 */
+	@Override
+	public Promise<T> whenComplete(BiConsumer<? super T, ? super Throwable> action) {
+		return whenCompleteAsync(action, null);
+	}
+
+	@Override
+	public Promise<T> whenCompleteAsync(BiConsumer<? super T, ? super Throwable> action) {
+		return whenCompleteAsync(action, PromiseExecutors.current());
+	}
+
+	@Override
+	public Promise<T> whenCompleteAsync(BiConsumer<? super T, ? super Throwable> action, Executor executor) {
+		return stage(executor, (v, e) -> {
+			try {
+				action.accept(v, e);
+			} catch (RuntimeException thrown) {
+				if (e == null) {
+					throw thrown;
+				}
+				e.addSuppressed(thrown);
+			}
+			if (e != null) {
+				throw e;
+			}
+			return v;
+		});
+	}
+
+	@Override
+	public Promise<T> exceptionally(Function<Throwable, ? extends T> fn) {
+		return stage(null, (v, e) -> e == null ? v : fn.apply(e));
+	}
+
+	/**
+	 * Returns a {@link CompletableFuture} completed by this promise, with no executor hop in
+	 * between. A cancelled promise cancels the future, and cancelling the future cancels the
+	 * promise; completing the future by other means leaves the promise alone.
+	 */
+	@Override
+	public CompletableFuture<T> toCompletableFuture() {
+		PromiseFuture<T> future = new PromiseFuture<>(this);
+		addListener(future);
+		return future;
+	}
+
+	/**
+	 * Runs {@code action} with the outcome of this promise, inline on the completing thread
+	 * when {@code executor} is null, and completes the returned promise with what it returns
+	 * or throws. Cancelling the returned promise cancels this one, like {@link #fmap} does.
+	 */
+	private <U> Promise<U> stage(Executor executor, StageAction<? super T, ? extends U> action) {
+		return stage(executor, false, action);
+	}
+
+	/**
+	 * {@link #stage(Executor, StageAction)} that runs {@code action} inline anyway if
+	 * {@code inlineIfShallow} is set and the completing thread has no backlog of listeners.
+	 */
+	private <U> Promise<U> stage(Executor executor, boolean inlineIfShallow,
+	                             StageAction<? super T, ? extends U> action) {
+		ActionPromise<T, U> stage = new ActionPromise<>(executor, inlineIfShallow, action);
+		Promise<U> promiseU = stage;
+		promiseU.upstream = this;
+		addListener(stage);
+		return promiseU;
+	}
+
+	/**
+	 * A promise completed by whichever of this promise and {@code other} completes first. Unlike
+	 * {@link Promises#race}, the loser is left running, as CompletionStage requires.
+	 */
+	private Promise<T> either(CompletionStage<? extends T> other) {
+		Promise<T> first = new Promise<>();
+		Listener<T> forward = new Listener<>() {
+			@Override
+			public void onSuccess(T value) {
+				first.notifySuccess(value);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				first.notifyFailure(exception);
+			}
+		};
+		addListener(forward);
+		fromCompletionStage(other).addListener(forward::onSuccess, forward::onFailure);
+		return first;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Promise)) {
+			return false;
+		}
+		Promise<?> that = (Promise<?>) obj;
+
+		Object v1 = this.await();
+		Object v2 = that.await();
+
+		return this.state() == that.state() && (Objects.equals(v1, v2));
+	}
+
+	/**
+	 * Fulfills this pending promise with the task, run on the executor, the way
+	 * {@link #fulfillInAsync(Callable, Executor)} does. {@code onExit}, if given, runs exactly once
+	 * after the task is over, including when it was skipped because this promise was cancelled
+	 * first or when the executor rejected it.
+	 */
+	final void fulfillOn(Callable<T> task, Executor executor, Runnable onExit) {
+		AsyncTask<T> asyncTask = new AsyncTask<>(this, task, onExit, !(executor instanceof SerialExecutor));
+		upstream = asyncTask;
+		if (result != null) {
+			// cancelled before the task was wired up, see dependOn
+			upstream = null;
+			asyncTask.skip();
+			return;
+		}
+		try {
+			executor.execute(asyncTask);
+		} catch (RejectedExecutionException e) {
+			notifyFailure(e);
+			asyncTask.skip();
+		}
+	}
+
+	/**
+	 * Gets the failure of this promise, or null unless the state is FAILED or CANCELLED.
+	 */
+	public Exception getException() {
+		Object r = result;
+		return r instanceof AltResult ? ((AltResult) r).exception : null;
+	}
+
+	/**
+	 * The value of this promise for subclasses, null unless the state is SUCCEEDED. Stands in
+	 * for the former {@code value} field; set it with {@link #notifySuccess}.
+	 */
+	protected final T value() {
+		return getValue();
+	}
+
+	/**
+	 * The failure of this promise for subclasses, like {@link #getException()}. Stands in for
+	 * the former {@code exception} field; set it with {@link #notifyFailure}.
+	 */
+	protected final Exception exception() {
+		return getException();
+	}
+
+	/**
+	 * A snapshot of the listeners still waiting, in the order they were added, empty once the
+	 * promise is done. Stands in for the former {@code listeners} field; add listeners with
+	 * {@link #addListener(Listener)}. Off its loop, a loop-bound promise may miss listeners
+	 * added on the loop just before.
+	 */
+	@SuppressWarnings("unchecked")
+	protected final List<Listener<T>> listeners() {
+		List<Listener<T>> waiting = new ArrayList<>();
+		Object cur = stack;
+		if (cur == CLOSED) {
+			return waiting;
+		}
+		while (cur instanceof ListenerNode) {
+			ListenerNode<T> node = (ListenerNode<T>) cur;
+			waiting.add(node.listener);
+			cur = node.next;
+		}
+		if (cur != null) {
+			waiting.add((Listener<T>) cur);
+		}
+		Collections.reverse(waiting);
+		return waiting;
+	}
+
+	final boolean isDone() {
+		return result != null;
+	}
+
+	/**
+	 * Hook for promises that combine several sources, called once this promise has been
+	 * cancelled, directly or from downstream.
+	 */
+	void onCancelled(boolean mayInterruptIfRunning) {
+	}
+
+	/**
+	 * Makes {@code source} the upstream of this promise, so that cancelling this promise
+	 * cancels {@code source}. Cancels {@code source} right away if this promise already is.
+	 * Writing upstream before reading the result, while {@link #cancel} writes the result
+	 * before reading upstream, guarantees that one of the two sides sees the other.
+	 */
+	final void dependOn(Promise<?> source) {
+		upstream = source;
+		if (result != null) {
+			upstream = null;
+			if (state() == State.CANCELLED) {
+				source.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Fulfills the promise, moves the state from PENDING to SUCCEED. It's intended
+	 * to be called inside of subclasses.
+	 */
+	protected final void notifySuccess(T value) {
+		if (complete(value == null ? NIL : value)) {
+			upstream = null;
+		}
+	}
+
+	void tryComplete() {
+		// nearly every promise completes without a thread waiting on it, skip the getAndSet
+		if (waiters == null) {
+			return;
+		}
+		for (Waiter w = (Waiter) WAITERS.getAndSet(this, null); w != null; w = w.next) {
+			Thread t = w.thread;
+			if (t != null) {
+				w.thread = null;
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	/**
+	 * Rejects the promise, moves the state from PENDING to FAILED. It's intended to be
+	 * called inside of subclasses.
+	 */
+	protected final void notifyFailure(Exception exception) {
+		if (complete(new AltResult(exception))) {
+			upstream = null;
+		}
+	}
+
+	/**
+	 * Moves the promise out of PENDING. Only the first caller wins; it then closes the
+	 * listener stack and runs every listener that was pushed before the close, on the loop of
+	 * a loop-bound promise, or right here if that loop has exited.
+	 */
+	private boolean complete(Object r) {
+		if (!RESULT.compareAndSet(this, null, r)) {
+			return false;
+		}
+		if (loop == null || loop.inEventLoop() || !loop.offer(() -> publish(r))) {
+			publish(r);
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the listeners of the result {@code r} just set, then wakes the waiters.
+	 */
+	private void publish(Object r) {
+		Object head = closeStack();
+		if (trace != null) {
+			PromiseMetrics.completed(trace, this, listenerCount(head));
+		}
+		try {
+			fire(head, r);
+		} finally {
+			// a throwing listener must not leave the waiters parked
+			tryComplete();
+		}
+	}
+
+	/**
+	 * The listener stack {@code stack} with {@code listener} pushed on top. Lets
+	 * {@link PrimitivePromise} keep its listeners the way a promise does.
+	 */
+	static Object push(Object stack, Listener<?> listener) {
+		return stack == null ? listener : new ListenerNode<>(listener, stack);
+	}
+
+	/**
+	 * Dispatches every listener of a stack built by {@link #push} through this thread's
+	 * trampoline, in the order they were added, with {@code r} as their value.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> void fire(Object head, Object r) {
+		if (head != null) {
+			Trampoline trampoline = Trampoline.current();
+			if (head instanceof ListenerNode) {
+				pushAll(trampoline, (ListenerNode<T>) head, r);
+			} else {
+				trampoline.push((Listener<T>) head, r);
+			}
+			trampoline.drain();
+		}
+	}
+
+	/**
+	 * Like {@link #complete(Object)} for a successful map stage, but when the only listener is
+	 * the next map stage, hands it back instead of dispatching it, so that
+	 * {@link MapPromise#onSuccess} can run it in the same loop.
+	 */
+	private MapPromise<?, ?> completeStage(Object r) {
+		if (!RESULT.compareAndSet(this, null, r)) {
+			return null;
+		}
+		upstream = null;
+		if (loop != null && !loop.inEventLoop() && loop.offer(() -> publish(r))) {
+			return null;
+		}
+		Object head = closeStack();
+		if (trace != null) {
+			PromiseMetrics.completed(trace, this, listenerCount(head));
+		}
+		tryComplete();
+		if (head instanceof MapPromise) {
+			return (MapPromise<?, ?>) head;
+		}
+		fire(head, r);
+		return null;
+	}
+
+	/**
+	 * Closes the listener stack of a promise whose result is set and returns the listeners that
+	 * were waiting. A loop-bound promise only has its stack touched on its loop, so plain
+	 * writes do there; once its loop has exited, any thread touches it, with atomics.
+	 */
+	private Object closeStack() {
+		if (loop == null || !loop.inEventLoop()) {
+			return STACK.getAndSet(this, CLOSED);
+		}
+		Object head = STACK.get(this);
+		STACK.set(this, CLOSED);
+		return head;
+	}
+
+	private static int listenerCount(Object head) {
+		int count = 0;
+		for (Object cur = head; cur != null; cur = cur instanceof ListenerNode ? ((ListenerNode<?>) cur).next : null) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Reverses the closed stack in place so listeners run in registration order. Nobody
+	 * else can reach the nodes once the stack is closed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> void pushAll(Trampoline trampoline, ListenerNode<T> head, Object r) {
+		ListenerNode<T> reversed = null;
+		Object cur = head;
+		while (cur instanceof ListenerNode) {
+			ListenerNode<T> node = (ListenerNode<T>) cur;
+			cur = node.next;
+			node.next = reversed;
+			reversed = node;
+		}
+		// the bottom of the stack is always a bare listener
+		trampoline.push((Listener<T>) cur, r);
+		for (ListenerNode<T> node = reversed; node != null; node = (ListenerNode<T>) node.next) {
+			trampoline.push(node.listener, r);
+		}
+	}
+
+	/**
+	 * Runs the listener through the calling thread's {@link Trampoline}: right away at the
+	 * top level, or after the listener currently running when called from inside one.
+	 */
+	private static <T> void dispatch(Listener<T> listener, Object r) {
+		Trampoline trampoline = Trampoline.current();
+		trampoline.push(listener, r);
+		trampoline.drain();
+	}
+
+	/**
+	 * {@link #invoke} timed for {@link PromiseMetrics}.
+	 */
+	private static void invokeTimed(Listener<?> listener, Object r) {
+		Object event = PromiseMetrics.beginDispatch();
+		long start = System.nanoTime();
+		try {
+			invoke(listener, r);
+		} finally {
+			PromiseMetrics.endDispatch(event, listener, System.nanoTime() - start);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void invoke(Listener<T> listener, Object r) {
+		if (r instanceof AltResult) {
+			Exception exception = ((AltResult) r).exception;
+			if (exception != null) {
+				listener.onFailure(exception);
+			} else {
+				listener.onSuccess(null);
+			}
+		} else {
+			listener.onSuccess((T) r);
+		}
+	}
+
+	/**
+	 * Where the listeners of a promise returned by {@link #dispatchOn} run.
+	 */
+	public enum Dispatch {
+		/**
+		 * On the thread that completes the source promise.
+		 */
+		INLINE,
+		/**
+		 * Always handed off to the executor.
+		 */
+		EXECUTOR,
+		/**
+		 * Inline, unless the completing thread is already running a long cascade of listeners
+		 * through its trampoline; then handed off so that the cascade doesn't grow further.
+		 */
+		INLINE_IF_SHALLOW,
+	}
+
+	/**
+	 * States of a promise.
+	 */
+	public enum State {
+		PENDING,
+		SUCCEEDED,
+		FAILED,
+		CANCELLED,
+	}
+
+	/**
+	 * The promise returned by {@link #fmap}, listening to its upstream itself.
+	 *
+	 * <p>Consecutive map stages are fused when they run: a stage whose only listener is the
+	 * next map stage completes itself and applies the next function in the same loop, without
+	 * going through the {@link Trampoline}. Every stage is still completed, so intermediate
+	 * promises held by callers observe their own values.
+	 */
+	private static final class MapPromise<T, R> extends Promise<R> implements Listener<T> {
+		private IF1<T, R> f;
+
+		MapPromise(IF1<T, R> f) {
+			this.f = f;
+		}
+
+		@Override
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public void onSuccess(T value) {
+			MapPromise stage = this;
+			Object v = value;
+			while (stage != null) {
+				// skip the work if the stage was cancelled in the meantime
+				if (stage.isDone()) {
+					return;
+				}
+				IF1 fn = stage.f;
+				stage.f = null;
+				try {
+					v = fn.apply(v);
+				} catch (RuntimeException e) {
+					stage.notifyFailure(e);
+					return;
+				}
+				stage = ((Promise<?>) stage).completeStage(v == null ? NIL : v);
+			}
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			f = null;
+			notifyFailure(exception);
+		}
+	}
+
+	/**
+	 * The promise returned by {@link #then}, listening to its upstream itself.
+	 */
+	private static final class BindPromise<T, R> extends Promise<R> implements Listener<T> {
+		private IF1<T, ? extends Monad<R>> f;
+
+		BindPromise(IF1<T, ? extends Monad<R>> f) {
+			this.f = f;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void onSuccess(T value) {
+			IF1<T, ? extends Monad<R>> fn = f;
+			f = null;
+			if (isDone()) {
+				return;
+			}
+			Promise<R> that;
+			try {
+				that = (Promise<R>) fn.apply(value);
+			} catch (RuntimeException e) {
+				notifyFailure(e);
+				return;
+			}
+			dependOn(that);
+			Object r = that.result;
+			if (r != null) {
+				// "that" is often already done, e.g. Promise.unit, no need to listen
+				Promise<R> self = this;
+				if (self.complete(r)) {
+					self.upstream = null;
+				}
+			} else {
+				// callback for "that" promise
+				that.addListener(new Listener<>() {
+					@Override
+					public void onSuccess(R value) {
+						notifySuccess(value);
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						notifyFailure(exception);
+					}
+				});
+			}
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			f = null;
+			notifyFailure(exception);
+		}
+	}
+
+	/**
+	 * Per-thread FIFO of listeners waiting to run. Completing a promise from inside a listener
+	 * only queues that promise's listeners; the outermost {@link #drain()} on the thread runs
+	 * them one after another, so the stack depth stays bounded however long a then/fmap chain
+	 * is. Entries are kept in two parallel ring buffers, so queueing allocates nothing.
+	 */
+	private static final class Trampoline {
+		private static final ThreadLocal<Trampoline> CURRENT = ThreadLocal.withInitial(Trampoline::new);
+		private static final int INITIAL_CAPACITY = 16;
+		private static final int RETAINED_CAPACITY = 1024;
+		/**
+		 * Depth up to which {@link Dispatch#INLINE_IF_SHALLOW} still runs listeners inline.
+		 */
+		private static final int SHALLOW_DEPTH = 32;
+
+		private Listener<?>[] listeners = new Listener<?>[INITIAL_CAPACITY];
+		private Object[] results = new Object[INITIAL_CAPACITY];
+		private int head;
+		private int size;
+		private boolean draining;
+		/**
+		 * Listeners run so far by the current outermost drain, i.e. the depth the call stack
+		 * would have reached without the trampoline.
+		 */
+		private int depth;
+
+		static Trampoline current() {
+			return CURRENT.get();
+		}
+
+		/**
+		 * Whether this thread is not deep into a cascade of listeners, so running one more
+		 * inline delays little else.
+		 */
+		boolean isShallow() {
+			return depth + size < SHALLOW_DEPTH;
+		}
+
+		void push(Listener<?> listener, Object r) {
+			if (size == listeners.length) {
+				grow();
+			}
+			int tail = (head + size) & (listeners.length - 1);
+			listeners[tail] = listener;
+			results[tail] = r;
+			size++;
+		}
+
+		/**
+		 * Runs the queued listeners unless an outer frame on this thread already does.
+		 */
+		void drain() {
+			if (!draining) {
+				run();
+			}
+		}
+
+		/**
+		 * Runs the queued listeners even from inside a listener. Used before blocking, when
+		 * the queued work may be what the caller is about to wait for.
+		 */
+		void flush() {
+			if (size > 0) {
+				run();
+			}
+		}
+
+		private void run() {
+			boolean outer = !draining;
+			boolean timed = PromiseMetrics.enabled;
+			draining = true;
+			Throwable failure = null;
+			try {
+				while (size > 0) {
+					Listener<?> listener = listeners[head];
+					Object r = results[head];
+					listeners[head] = null;
+					results[head] = null;
+					head = (head + 1) & (listeners.length - 1);
+					size--;
+					depth++;
+					try {
+						if (timed) {
+							invokeTimed(listener, r);
+						} else {
+							invoke(listener, r);
+						}
+					} catch (Throwable t) {
+						// keep draining, the remaining listeners belong to other promises
+						if (failure == null) {
+							failure = t;
+						} else {
+							failure.addSuppressed(t);
+						}
+					}
+				}
+			} finally {
+				if (outer) {
+					draining = false;
+					depth = 0;
+					if (size == 0 && listeners.length > RETAINED_CAPACITY) {
+						listeners = new Listener<?>[INITIAL_CAPACITY];
+						results = new Object[INITIAL_CAPACITY];
+						head = 0;
+					}
+				}
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw new UndeclaredThrowableException(failure);
+			}
+		}
+
+		private void grow() {
+			int capacity = listeners.length;
+			Listener<?>[] newListeners = new Listener<?>[capacity << 1];
+			Object[] newResults = new Object[capacity << 1];
+			for (int i = 0; i < size; i++) {
+				int index = (head + i) & (capacity - 1);
+				newListeners[i] = listeners[index];
+				newResults[i] = results[index];
+			}
+			listeners = newListeners;
+			results = newResults;
+			head = 0;
+		}
+	}
+
+	/**
+	 * A listener registered from an {@link EventLoop} on a promise completed elsewhere: runs
+	 * the listener back on its loop, or right away if the loop has exited.
+	 */
+	private static final class LoopHop<T> implements Listener<T> {
+		private final Listener<T> listener;
+		private final EventLoop loop;
+
+		LoopHop(Listener<T> listener, EventLoop loop) {
+			this.listener = listener;
+			this.loop = loop;
+		}
+
+		@Override
+		public void onSuccess(T value) {
+			if (!loop.offer(() -> listener.onSuccess(value))) {
+				listener.onSuccess(value);
+			}
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			if (!loop.offer(() -> listener.onFailure(exception))) {
+				listener.onFailure(exception);
+			}
+		}
+	}
+
+	/**
+	 * A thread parked in {@link #await}, and the {@link ForkJoinPool.ManagedBlocker} it parks
+	 * through. {@code thread} is cleared once the waiter is woken up or gives up.
+	 */
+	private static final class Waiter implements ForkJoinPool.ManagedBlocker {
+		private final Promise<?> promise;
+		private final boolean timed;
+		private final long deadline;
+		volatile Thread thread = Thread.currentThread();
+		volatile Waiter next;
+		boolean interrupted;
+
+		Waiter(Promise<?> promise, boolean timed, long deadline) {
+			this.promise = promise;
+			this.timed = timed;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return promise.result != null || (timed && deadline - System.nanoTime() <= 0);
+		}
+
+		@Override
+		public boolean block() {
+			if (!isReleasable()) {
+				if (timed) {
+					LockSupport.parkNanos(promise, deadline - System.nanoTime());
+				} else {
+					LockSupport.park(promise);
+				}
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			return isReleasable();
+		}
+	}
+
+	/**
+	 * Runs the task of {@link #fulfillInAsync}, and lets {@link #cancel(boolean)} stop it: a
+	 * task cancelled before it starts is skipped, a running one may be interrupted.
+	 */
+	private static final class AsyncTask<T> implements Runnable {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<AsyncTask> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(AsyncTask.class, "state");
+		private static final int NEW = 0;
+		private static final int RUNNING = 1;
+		private static final int INTERRUPTING = 2;
+		private static final int DONE = 3;
+		private static final int CANCELLED = 4;
+
+		private final Promise<T> promise;
+		private final Runnable onExit;
+		/**
+		 * Whether a joining thread may run the task, false on a {@link SerialExecutor}.
+		 */
+		private final boolean helpable;
+		private Callable<T> task;
+		private volatile int state = NEW;
+		private volatile Thread runner;
+
+		AsyncTask(Promise<T> promise, Callable<T> task, Runnable onExit, boolean helpable) {
+			this.promise = promise;
+			this.task = task;
+			this.onExit = onExit;
+			this.helpable = helpable;
+		}
+
+		@Override
+		public void run() {
+			if (STATE.compareAndSet(this, NEW, RUNNING)) {
+				runClaimed();
+			} else if (state == CANCELLED) {
+				// cancelled before it started, nobody else will call exit
+				exit();
+			}
+			// otherwise a joining thread has claimed it
+		}
+
+		/**
+		 * Runs the task on the calling thread if no thread has started it yet.
+		 */
+		void help() {
+			if (helpable && STATE.compareAndSet(this, NEW, RUNNING)) {
+				runClaimed();
+			}
+		}
+
+		private void runClaimed() {
+			runner = Thread.currentThread();
+			if (state != RUNNING) {
+				// cancel(true) came before runner was published and couldn't interrupt us
+				Thread.currentThread().interrupt();
+			}
+			try {
+				T value = task.call();
+				promise.notifySuccess(value);
+			} catch (Exception e) {
+				promise.notifyFailure(e);
+			} finally {
+				task = null;
+				if (!STATE.compareAndSet(this, RUNNING, DONE)) {
+					// a canceller is interrupting this thread, don't let the interrupt leak
+					// into whatever the pool runs next
+					while (state == INTERRUPTING) {
+						Thread.onSpinWait();
+					}
+					Thread.interrupted();
+				}
+				runner = null;
+				exit();
+			}
+		}
+
+		/**
+		 * Gives up on a task that will never reach run().
+		 */
+		void skip() {
+			state = DONE;
+			task = null;
+			exit();
+		}
+
+		private void exit() {
+			if (onExit != null) {
+				onExit.run();
+			}
+		}
+
+		void cancel(boolean mayInterruptIfRunning) {
+			if (STATE.compareAndSet(this, NEW, CANCELLED)) {
+				task = null;
+			} else if (mayInterruptIfRunning && STATE.compareAndSet(this, RUNNING, INTERRUPTING)) {
+				try {
+					Thread t = runner;
+					if (t != null) {
+						t.interrupt();
+					}
+				} finally {
+					state = DONE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Body of a {@link CompletionStage} method: gets either the value or the failure of the
+	 * upstream promise, the other one is null.
+	 */
+	@FunctionalInterface
+	private interface StageAction<T, U> {
+		U apply(T value, Exception failure) throws Exception;
+	}
+
+	/**
+	 * The promise returned by the {@link CompletionStage} methods, listening to its upstream
+	 * itself and running its action inline or on its executor.
+	 */
+	private static final class ActionPromise<T, U> extends Promise<U> implements Listener<T> {
+		private final Executor executor;
+		private final boolean inlineIfShallow;
+		private StageAction<? super T, ? extends U> action;
+
+		ActionPromise(Executor executor, boolean inlineIfShallow, StageAction<? super T, ? extends U> action) {
+			this.executor = executor;
+			this.inlineIfShallow = inlineIfShallow;
+			this.action = action;
+		}
+
+		@Override
+		public void onSuccess(T value) {
+			schedule(value, null);
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			schedule(null, exception);
+		}
+
+		private void schedule(T value, Exception failure) {
+			if (executor == null || (inlineIfShallow && Trampoline.current().isShallow())) {
+				run(value, failure);
+				return;
+			}
+			try {
+				executor.execute(() -> run(value, failure));
+			} catch (RejectedExecutionException e) {
+				action = null;
+				notifyFailure(e);
+			}
+		}
+
+		private void run(T value, Exception failure) {
+			StageAction<? super T, ? extends U> fn = action;
+			action = null;
+			// skip the work if the stage was cancelled in the meantime
+			if (isDone()) {
+				return;
+			}
+			try {
+				notifySuccess(fn.apply(value, failure));
+			} catch (Exception e) {
+				notifyFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * The promise returned by {@link #fromCompletionStage}, which is also the callback it
+	 * registers on the stage.
+	 */
+	private static final class StagePromise<T> extends Promise<T> implements BiConsumer<T, Throwable> {
+		private final CompletionStage<T> stage;
+
+		StagePromise(CompletionStage<T> stage) {
+			this.stage = stage;
+		}
+
+		@Override
+		public void accept(T value, Throwable failure) {
+			if (failure == null) {
+				notifySuccess(value);
+				return;
+			}
+			if (failure instanceof CompletionException && failure.getCause() != null) {
+				failure = failure.getCause();
+			}
+			notifyFailure(failure instanceof Exception ? (Exception) failure : new CompletionException(failure));
+		}
+
+		@Override
+		void onCancelled(boolean mayInterruptIfRunning) {
+			if (stage instanceof Future) {
+				((Future<?>) stage).cancel(mayInterruptIfRunning);
+			}
+		}
+	}
+
+	/**
+	 * The future returned by {@link #toCompletableFuture()}, which is also the listener it
+	 * registers on the promise.
+	 */
+	private static final class PromiseFuture<T> extends CompletableFuture<T> implements Listener<T> {
+		private final Promise<T> promise;
+
+		PromiseFuture(Promise<T> promise) {
+			this.promise = promise;
+		}
+
+		@Override
+		public void onSuccess(T value) {
+			complete(value);
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			// a CancellationException makes the future report isCancelled() as well
+			completeExceptionally(exception);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			promise.cancel(mayInterruptIfRunning);
+			return super.cancel(mayInterruptIfRunning);
+		}
+	}
+
+	/**
+	 * Boxed outcome for failures and {@code null} values.
+	 */
+	private static final class AltResult {
+		final Exception exception;
+
+		AltResult(Exception exception) {
+			this.exception = exception;
+		}
+	}
+
+	private static final class ListenerNode<T> {
+		final Listener<T> listener;
+		/**
+		 * Either another {@link ListenerNode} or the bare listener at the bottom of the stack.
+		 */
+		Object next;
+
+		ListenerNode(Listener<T> listener, Object next) {
+			this.listener = listener;
+			this.next = next;
+		}
 	}
 
 	/**
@@ -0,0 +1,163 @@
+package com.fava.promise;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * JDK Flight Recorder events of {@link PromiseMetrics}. Only loaded once metrics are enabled
+ * and the jdk.jfr module is present, so nothing here costs anything otherwise.
+ */
+final class PromiseEvents {
+	static {
+		FlightRecorder.addPeriodicEvent(PoolStatistics.class, PromiseEvents::emitPoolStatistics);
+	}
+
+	private PromiseEvents() {
+	}
+
+	/**
+	 * Forces the periodic event to be registered.
+	 */
+	static void init() {
+	}
+
+	static Object created(Promise<?> promise) {
+		Created created = new Created();
+		if (created.isEnabled()) {
+			created.promiseClass = promise.getClass().getName();
+			created.commit();
+		}
+		Completed completed = new Completed();
+		if (!completed.isEnabled()) {
+			return null;
+		}
+		completed.begin();
+		return completed;
+	}
+
+	static void completed(Object event, Promise<?> promise, int listeners) {
+		Completed completed = (Completed) event;
+		completed.end();
+		if (completed.shouldCommit()) {
+			completed.promiseClass = promise.getClass().getName();
+			completed.state = promise.state().name();
+			completed.listeners = listeners;
+			completed.commit();
+		}
+	}
+
+	static Object beginDispatch() {
+		ListenerDispatch dispatch = new ListenerDispatch();
+		if (!dispatch.isEnabled()) {
+			return null;
+		}
+		dispatch.begin();
+		return dispatch;
+	}
+
+	static void endDispatch(Object event, Object listener) {
+		ListenerDispatch dispatch = (ListenerDispatch) event;
+		dispatch.end();
+		if (dispatch.shouldCommit()) {
+			dispatch.listenerClass = listener.getClass().getName();
+			dispatch.commit();
+		}
+	}
+
+	static void slowListener(Object listener, long nanos, long thresholdNanos) {
+		SlowListener slow = new SlowListener();
+		if (slow.isEnabled()) {
+			slow.listenerClass = listener.getClass().getName();
+			slow.elapsed = nanos;
+			slow.threshold = thresholdNanos;
+			slow.commit();
+		}
+	}
+
+	private static void emitPoolStatistics() {
+		PoolStatistics statistics = new PoolStatistics();
+		ExecutorService pool = PromiseExecutors.fixedPoolIfStarted();
+		if (pool instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+			statistics.poolSize = executor.getPoolSize();
+			statistics.activeThreads = executor.getActiveCount();
+			statistics.queueDepth = executor.getQueue().size();
+		}
+		statistics.commit();
+	}
+
+	@Name("com.fava.promise.PromiseCreated")
+	@Label("Promise Created")
+	@Category({"Fava", "Promise"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Created extends Event {
+		@Label("Promise Class")
+		String promiseClass;
+	}
+
+	@Name("com.fava.promise.PromiseCompleted")
+	@Label("Promise Completed")
+	@Description("A promise left PENDING; the duration is the time since it was created")
+	@Category({"Fava", "Promise"})
+	@StackTrace(false)
+	static final class Completed extends Event {
+		@Label("Promise Class")
+		String promiseClass;
+		@Label("State")
+		String state;
+		@Label("Listeners")
+		int listeners;
+	}
+
+	@Name("com.fava.promise.ListenerDispatch")
+	@Label("Promise Listener Dispatch")
+	@Category({"Fava", "Promise"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class ListenerDispatch extends Event {
+		@Label("Listener Class")
+		String listenerClass;
+	}
+
+	@Name("com.fava.promise.SlowListener")
+	@Label("Slow Promise Listener")
+	@Description("A listener ran longer than PromiseMetrics.setSlowListenerThreshold, stalling the completing thread")
+	@Category({"Fava", "Promise"})
+	static final class SlowListener extends Event {
+		@Label("Listener Class")
+		String listenerClass;
+		@Label("Elapsed")
+		@Timespan
+		long elapsed;
+		@Label("Threshold")
+		@Timespan
+		long threshold;
+	}
+
+	@Name("com.fava.promise.PoolStatistics")
+	@Label("Promise Pool Statistics")
+	@Description("Saturation of the fixed pool behind Promise.fulfillInAsync, zero until it is started")
+	@Category({"Fava", "Promise"})
+	@Period("1 s")
+	@StackTrace(false)
+	static final class PoolStatistics extends Event {
+		@Label("Pool Size")
+		int poolSize;
+		@Label("Active Threads")
+		int activeThreads;
+		@Label("Queue Depth")
+		int queueDepth;
+	}
+}
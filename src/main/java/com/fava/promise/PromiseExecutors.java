@@ -0,0 +1,176 @@
+package com.fava.promise;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Executor backends for {@link Promise#fulfillInAsync(java.util.concurrent.Callable)}.
+ *
+ * <p>The executor used by default is looked up through a provider, which can be replaced with
+ * {@link #setProvider(Supplier)}. The built-in provider is chosen by the system property
+ * {@code fava.promise.executor}:
+ * <ul>
+ *     <li>{@code fixed} (default): a fixed pool of {@code processors * 100} daemon threads</li>
+ *     <li>{@code virtual}: one virtual thread per task, JDK 21+ only</li>
+ * </ul>
+ * The property is read once, when the built-in provider is first asked; neither backend is
+ * created before that.
+ */
+public final class PromiseExecutors {
+	public static final String EXECUTOR_PROPERTY = "fava.promise.executor";
+
+	private static final Object lock = new Object();
+	private static final Supplier<Executor> DEFAULT_PROVIDER = PromiseExecutors::defaultExecutor;
+
+	private static volatile Supplier<? extends Executor> provider = DEFAULT_PROVIDER;
+	private static volatile ExecutorService fixedPool;
+	private static volatile ExecutorService virtualPool;
+
+	private PromiseExecutors() {
+	}
+
+	/**
+	 * Returns the executor that asynchronous promises use when none is given explicitly.
+	 */
+	public static Executor current() {
+		return provider.get();
+	}
+
+	/**
+	 * Replaces the global executor provider. The provider is asked on every submission, so it
+	 * should return a cached instance.
+	 */
+	public static void setProvider(Supplier<? extends Executor> executorProvider) {
+		if (executorProvider == null) {
+			throw new NullPointerException("executorProvider");
+		}
+		provider = executorProvider;
+	}
+
+	/**
+	 * Restores the built-in provider selected by {@value #EXECUTOR_PROPERTY}.
+	 */
+	public static void resetProvider() {
+		provider = DEFAULT_PROVIDER;
+	}
+
+	/**
+	 * The fixed pool of platform threads, created on first use.
+	 */
+	public static Executor fixedPool() {
+		ExecutorService pool = fixedPool;
+		if (pool == null) {
+			synchronized (lock) {
+				pool = fixedPool;
+				if (pool == null) {
+					int processors = Runtime.getRuntime().availableProcessors();
+					fixedPool = pool = Executors.newFixedThreadPool(processors * 100, daemonThreads("fava-promise-"));
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * The fixed pool if it has been created, without creating it.
+	 */
+	static ExecutorService fixedPoolIfStarted() {
+		return fixedPool;
+	}
+
+	/**
+	 * Whether the running JDK can start virtual threads.
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return VirtualThreads.FACTORY != null;
+	}
+
+	/**
+	 * An executor that starts a new virtual thread for every task, created on first use.
+	 *
+	 * @throws UnsupportedOperationException if the running JDK has no virtual threads
+	 */
+	public static Executor virtualThreadPerTask() {
+		ExecutorService pool = virtualPool;
+		if (pool == null) {
+			synchronized (lock) {
+				pool = virtualPool;
+				if (pool == null) {
+					virtualPool = pool = VirtualThreads.newExecutor();
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Shuts down the built-in executors that have been created so far. Tasks already
+	 * submitted still run; a later submission creates a fresh executor.
+	 */
+	public static void shutdown() {
+		synchronized (lock) {
+			if (fixedPool != null) {
+				fixedPool.shutdown();
+				fixedPool = null;
+			}
+			if (virtualPool != null) {
+				virtualPool.shutdown();
+				virtualPool = null;
+			}
+		}
+	}
+
+	private static Executor defaultExecutor() {
+		return DefaultBackend.VIRTUAL ? virtualThreadPerTask() : fixedPool();
+	}
+
+	/**
+	 * The backend selected by {@value #EXECUTOR_PROPERTY}, resolved when the built-in provider
+	 * is first asked rather than on every submission.
+	 */
+	private static final class DefaultBackend {
+		static final boolean VIRTUAL =
+				"virtual".equalsIgnoreCase(System.getProperty(EXECUTOR_PROPERTY)) && virtualThreadsAvailable();
+	}
+
+	static ThreadFactory daemonThreads(String prefix) {
+		AtomicInteger count = new AtomicInteger(0);
+		return r -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Looks up {@code Executors.newVirtualThreadPerTaskExecutor} reflectively, so the library
+	 * still compiles and runs on JDK 11.
+	 */
+	private static final class VirtualThreads {
+		static final Method FACTORY = lookup();
+
+		private static Method lookup() {
+			try {
+				return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+
+		static ExecutorService newExecutor() {
+			if (FACTORY == null) {
+				throw new UnsupportedOperationException("virtual threads require JDK 21+");
+			}
+			try {
+				return (ExecutorService) FACTORY.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				throw new UnsupportedOperationException("virtual threads are not usable", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.fava.promise;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lifecycle metrics of promises, off by default. While enabled, every promise created records
+ * how long it stays PENDING and how many listeners it had, every listener dispatch is timed, and
+ * the same data is emitted as JDK Flight Recorder events under the "Fava / Promise" category
+ * when a recording is running:
+ * <ul>
+ *     <li>{@code com.fava.promise.PromiseCompleted}: duration is the time spent PENDING</li>
+ *     <li>{@code com.fava.promise.SlowListener}: a listener ran past the slow-listener threshold</li>
+ *     <li>{@code com.fava.promise.PoolStatistics}: periodic size, activity and queue depth of
+ *     {@link PromiseExecutors#fixedPool()}</li>
+ *     <li>{@code com.fava.promise.PromiseCreated} and {@code com.fava.promise.ListenerDispatch}:
+ *     one event per promise or listener, disabled unless the recording settings enable them</li>
+ * </ul>
+ *
+ * <p>Metrics are enabled with {@link #enable()} or the system property
+ * {@code fava.promise.metrics=true}. While disabled, the cost is one volatile read when a
+ * promise is created and when a batch of listeners is dispatched. Promises created while
+ * disabled are not tracked even if metrics are enabled before they complete.
+ */
+public final class PromiseMetrics {
+	public static final String METRICS_PROPERTY = "fava.promise.metrics";
+
+	private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+	private static final LatencyHistogram latency = new LatencyHistogram();
+	private static final LongAdder created = new LongAdder();
+	private static final LongAdder completed = new LongAdder();
+	private static final LongAdder dispatched = new LongAdder();
+	private static final LongAdder slowListeners = new LongAdder();
+	private static final AtomicInteger maxListeners = new AtomicInteger();
+
+	static volatile boolean enabled;
+	private static volatile long slowListenerNanos = Duration.ofMillis(10).toNanos();
+
+	static {
+		if (Boolean.getBoolean(METRICS_PROPERTY)) {
+			enable();
+		}
+	}
+
+	private PromiseMetrics() {
+	}
+
+	public static void enable() {
+		if (JFR_AVAILABLE) {
+			PromiseEvents.init();
+		}
+		enabled = true;
+	}
+
+	public static void disable() {
+		enabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Listeners running longer than {@code threshold} are counted as slow and reported as
+	 * {@code com.fava.promise.SlowListener} events. Defaults to 10 ms.
+	 */
+	public static void setSlowListenerThreshold(Duration threshold) {
+		slowListenerNanos = threshold.toNanos();
+	}
+
+	/**
+	 * Clears the counters and the latency histogram.
+	 */
+	public static void reset() {
+		latency.reset();
+		created.reset();
+		completed.reset();
+		dispatched.reset();
+		slowListeners.reset();
+		maxListeners.set(0);
+	}
+
+	/**
+	 * Takes a snapshot of the metrics collected so far and of the current state of the fixed pool.
+	 * The counters are read one after another, so they are only roughly consistent with each other
+	 * while promises are completing.
+	 */
+	public static Snapshot snapshot() {
+		int poolSize = -1;
+		int activeThreads = -1;
+		int queueDepth = -1;
+		ExecutorService pool = PromiseExecutors.fixedPoolIfStarted();
+		if (pool instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+			poolSize = executor.getPoolSize();
+			activeThreads = executor.getActiveCount();
+			queueDepth = executor.getQueue().size();
+		}
+		return new Snapshot(created.sum(), completed.sum(), dispatched.sum(), slowListeners.sum(),
+				maxListeners.get(), latency.counts(), poolSize, activeThreads, queueDepth);
+	}
+
+	/**
+	 * Called by a promise created while enabled.
+	 */
+	static Trace created(Promise<?> promise) {
+		created.increment();
+		return new Trace(System.nanoTime(), JFR_AVAILABLE ? PromiseEvents.created(promise) : null);
+	}
+
+	/**
+	 * Called once by a traced promise when it leaves PENDING.
+	 */
+	static void completed(Trace trace, Promise<?> promise, int listeners) {
+		latency.record(System.nanoTime() - trace.start);
+		completed.increment();
+		if (listeners > maxListeners.get()) {
+			maxListeners.accumulateAndGet(listeners, Math::max);
+		}
+		if (trace.event != null) {
+			PromiseEvents.completed(trace.event, promise, listeners);
+		}
+	}
+
+	/**
+	 * Called right before a listener runs, returns what {@link #endDispatch} needs.
+	 */
+	static Object beginDispatch() {
+		return JFR_AVAILABLE ? PromiseEvents.beginDispatch() : null;
+	}
+
+	static void endDispatch(Object event, Object listener, long nanos) {
+		dispatched.increment();
+		if (event != null) {
+			PromiseEvents.endDispatch(event, listener);
+		}
+		long threshold = slowListenerNanos;
+		if (nanos >= threshold) {
+			slowListeners.increment();
+			if (JFR_AVAILABLE) {
+				PromiseEvents.slowListener(listener, nanos, threshold);
+			}
+		}
+	}
+
+	/**
+	 * Creation record of a promise, kept until it completes.
+	 */
+	static final class Trace {
+		final long start;
+		final Object event;
+
+		Trace(long start, Object event) {
+			this.start = start;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Point-in-time view of the metrics. Pool figures are -1 while the fixed pool hasn't been
+	 * started or was replaced by another executor.
+	 */
+	public static final class Snapshot {
+		private final long created;
+		private final long completed;
+		private final long listenersDispatched;
+		private final long slowListeners;
+		private final int maxListeners;
+		private final long[] latencyCounts;
+		private final int poolSize;
+		private final int activeThreads;
+		private final int queueDepth;
+
+		private Snapshot(long created, long completed, long listenersDispatched, long slowListeners,
+		                 int maxListeners, long[] latencyCounts, int poolSize, int activeThreads, int queueDepth) {
+			this.created = created;
+			this.completed = completed;
+			this.listenersDispatched = listenersDispatched;
+			this.slowListeners = slowListeners;
+			this.maxListeners = maxListeners;
+			this.latencyCounts = latencyCounts;
+			this.poolSize = poolSize;
+			this.activeThreads = activeThreads;
+			this.queueDepth = queueDepth;
+		}
+
+		public long created() {
+			return created;
+		}
+
+		public long completed() {
+			return completed;
+		}
+
+		/**
+		 * Tracked promises not completed yet, including ones that were dropped while PENDING.
+		 */
+		public long pending() {
+			return Math.max(0, created - completed);
+		}
+
+		public long listenersDispatched() {
+			return listenersDispatched;
+		}
+
+		public long slowListeners() {
+			return slowListeners;
+		}
+
+		/**
+		 * The most listeners any tracked promise had when it completed.
+		 */
+		public int maxListeners() {
+			return maxListeners;
+		}
+
+		/**
+		 * Time spent PENDING below which {@code percentile} percent of the tracked promises
+		 * completed, within 12.5%. Zero if none completed.
+		 */
+		public Duration latencyPercentile(double percentile) {
+			return Duration.ofNanos(LatencyHistogram.valueAt(latencyCounts, percentile));
+		}
+
+		public int poolSize() {
+			return poolSize;
+		}
+
+		public int activeThreads() {
+			return activeThreads;
+		}
+
+		public int queueDepth() {
+			return queueDepth;
+		}
+
+		@Override
+		public String toString() {
+			return "PromiseMetrics.Snapshot{created=" + created + ", completed=" + completed
+					+ ", p50=" + latencyPercentile(50) + ", p99=" + latencyPercentile(99)
+					+ ", maxListeners=" + maxListeners + ", slowListeners=" + slowListeners
+					+ ", poolSize=" + poolSize + ", activeThreads=" + activeThreads
+					+ ", queueDepth=" + queueDepth + "}";
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.fava.promise;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A structured fan-out: tasks forked in a scope are tracked until they exit, a policy can cancel
+ * the remaining ones as soon as one fails or succeeds, and {@link #close()} doesn't return while
+ * any of them is still running. Meant for try-with-resources:
+ * <pre>{@code
+ * try (PromiseScope<Object> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_FAILURE)) {
+ *     Promise<User> user = scope.fork(() -> findUser(id));
+ *     Promise<Order> order = scope.fork(() -> fetchOrder(id));
+ *     return scope.join().then(ignored -> Promise.unit(render(user.getValue(), order.getValue())));
+ * }
+ * }</pre>
+ *
+ * <p>{@link #join()} doesn't block: it returns a promise completed by the last task to exit, so
+ * waiting on a scope costs no thread, let alone one per task.
+ */
+public final class PromiseScope<T> implements AutoCloseable {
+	private final Policy policy;
+	private final Executor executor;
+	private final Set<Promise<?>> running = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final AtomicReference<Promise<T>> joined = new AtomicReference<>();
+	private final AtomicReference<Object> firstSuccess = new AtomicReference<>();
+	private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+	private volatile boolean shutdown;
+
+	/**
+	 * What a scope does when one of its tasks is over.
+	 */
+	public enum Policy {
+		/**
+		 * Tasks are only tracked; {@link #join()} succeeds with null once they are all over.
+		 */
+		NONE,
+		/**
+		 * The first failure cancels the other tasks and fails {@link #join()}.
+		 */
+		SHUTDOWN_ON_FAILURE,
+		/**
+		 * The first success cancels the other tasks and becomes the value of {@link #join()},
+		 * which only fails if every task failed.
+		 */
+		SHUTDOWN_ON_SUCCESS,
+	}
+
+	/**
+	 * Forks tasks on the executor returned by {@link PromiseExecutors#current()}.
+	 */
+	public PromiseScope(Policy policy) {
+		this(policy, PromiseExecutors.current());
+	}
+
+	public PromiseScope(Policy policy, Executor executor) {
+		this.policy = policy;
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts the task in this scope. After {@link #shutdown()} the task doesn't run and the
+	 * returned promise is cancelled.
+	 */
+	public <U extends T> Promise<U> fork(Callable<U> task) {
+		Promise<U> promise = new Promise<>();
+		if (shutdown) {
+			promise.cancel(false);
+			return promise;
+		}
+		active.incrementAndGet();
+		running.add(promise);
+		// the task exits once its outcome is recorded and its thread is done with it, the
+		// listener may run after onExit when the task completes inside a trampoline drain
+		AtomicInteger pending = new AtomicInteger(2);
+		Runnable arrive = () -> {
+			if (pending.decrementAndGet() == 0) {
+				exited(promise);
+			}
+		};
+		promise.addListener(value -> {
+			succeeded(value);
+			arrive.run();
+		}, exception -> {
+			failed(exception);
+			arrive.run();
+		});
+		promise.fulfillOn(task, executor, arrive);
+		if (shutdown) {
+			// lost a race with shutdown(), which may have missed this task
+			promise.cancel(true);
+		}
+		return promise;
+	}
+
+	/**
+	 * Returns a promise completed once every task forked so far has exited, including tasks
+	 * cancelled by a shutdown. Its outcome depends on the {@link Policy}. Calling join again
+	 * before the scope is idle returns the same promise.
+	 */
+	public Promise<T> join() {
+		Promise<T> promise = joined.get();
+		if (promise == null || promise.isDone()) {
+			Promise<T> created = new Promise<>();
+			promise = joined.compareAndSet(promise, created) ? created : joined.get();
+		}
+		if (active.get() == 0) {
+			complete(promise);
+		}
+		return promise;
+	}
+
+	/**
+	 * Cancels every task still running, interrupting them, and prevents new ones from starting.
+	 */
+	public void shutdown() {
+		if (shutdown) {
+			return;
+		}
+		shutdown = true;
+		for (Promise<?> promise : running) {
+			promise.cancel(true);
+		}
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Shuts the scope down and waits until every task has exited. This blocks the calling thread,
+	 * but only until the cancelled tasks notice their interrupt.
+	 */
+	@Override
+	public void close() {
+		shutdown();
+		if (active.get() > 0) {
+			join().await();
+		}
+	}
+
+	private void succeeded(Object value) {
+		if (firstSuccess.compareAndSet(null, value == null ? NULL : value) && policy == Policy.SHUTDOWN_ON_SUCCESS) {
+			shutdown();
+		}
+	}
+
+	private void failed(Exception exception) {
+		if (shutdown && exception instanceof CancellationException) {
+			// one of ours, cancelled by the policy or by close
+			return;
+		}
+		if (firstFailure.compareAndSet(null, exception) && policy == Policy.SHUTDOWN_ON_FAILURE) {
+			shutdown();
+		}
+	}
+
+	private void exited(Promise<?> promise) {
+		running.remove(promise);
+		if (active.decrementAndGet() == 0) {
+			Promise<T> waiting = joined.get();
+			if (waiting != null) {
+				complete(waiting);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void complete(Promise<T> promise) {
+		Exception failure = firstFailure.get();
+		Object success = firstSuccess.get();
+		switch (policy) {
+			case SHUTDOWN_ON_FAILURE:
+				if (failure != null) {
+					promise.notifyFailure(failure);
+					return;
+				}
+				break;
+			case SHUTDOWN_ON_SUCCESS:
+				if (success != null) {
+					promise.notifySuccess(success == NULL ? null : (T) success);
+					return;
+				}
+				if (failure != null) {
+					promise.notifyFailure(failure);
+					return;
+				}
+				break;
+			default:
+		}
+		promise.notifySuccess(null);
+	}
+
+	/**
+	 * Stands for a successful null result in {@code firstSuccess}.
+	 */
+	private static final Object NULL = new Object();
+}
@@ -0,0 +1,589 @@
+package com.fava.promise;
+
+import com.fava.Functions.IF1;
+import com.fava.Functions.IF2;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sequence of values that arrive over time, the many-valued counterpart of {@link Promise}.
+ *
+ * <p>Streams are demand driven: nothing is produced until a subscriber requests it, and every
+ * stage only asks its upstream for as much as it can hand on. An unbounded source therefore
+ * runs through {@code map}, {@code mapAsync}, {@code filter}, {@code take} and {@code fold} in
+ * constant memory.
+ *
+ * <p>A stream is a {@link Flow.Publisher}, so any {@link Flow.Subscriber} can consume it, and any
+ * publisher can be turned into a stream with {@link #fromPublisher(Flow.Publisher)}.
+ */
+public final class PromiseStream<T> implements Flow.Publisher<T> {
+	private static final Flow.Subscription NOOP_SUBSCRIPTION = new Flow.Subscription() {
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	private final Flow.Publisher<T> source;
+
+	private PromiseStream(Flow.Publisher<T> source) {
+		this.source = source;
+	}
+
+	/**
+	 * Adapts a publisher. Subscribing to the stream subscribes to the publisher.
+	 */
+	public static <T> PromiseStream<T> fromPublisher(Flow.Publisher<T> publisher) {
+		Objects.requireNonNull(publisher, "publisher");
+		return publisher instanceof PromiseStream ? (PromiseStream<T>) publisher : new PromiseStream<>(publisher);
+	}
+
+	/**
+	 * Emits the values of the iterable; every subscriber gets a fresh iterator.
+	 */
+	public static <T> PromiseStream<T> fromIterable(Iterable<T> iterable) {
+		Objects.requireNonNull(iterable, "iterable");
+		return new PromiseStream<>(subscriber -> {
+			Iterator<T> iterator;
+			try {
+				iterator = iterable.iterator();
+			} catch (RuntimeException e) {
+				subscriber.onSubscribe(NOOP_SUBSCRIPTION);
+				subscriber.onError(e);
+				return;
+			}
+			subscriber.onSubscribe(new IteratorSubscription<>(subscriber, iterator));
+		});
+	}
+
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public static <T> PromiseStream<T> of(T... values) {
+		return fromIterable(Arrays.asList(values));
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		source.subscribe(Objects.requireNonNull(subscriber, "subscriber"));
+	}
+
+	public <R> PromiseStream<R> map(IF1<T, R> f) {
+		return new PromiseStream<>(subscriber -> source.subscribe(new MapSubscriber<>(subscriber, f)));
+	}
+
+	public PromiseStream<T> filter(IF1<T, Boolean> predicate) {
+		return new PromiseStream<>(subscriber -> source.subscribe(new FilterSubscriber<>(subscriber, predicate)));
+	}
+
+	/**
+	 * Emits the first {@code n} values, then cancels the upstream. Never requests more than
+	 * {@code n} values from it.
+	 */
+	public PromiseStream<T> take(long n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("n must not be negative: " + n);
+		}
+		return new PromiseStream<>(subscriber -> source.subscribe(new TakeSubscriber<>(subscriber, n)));
+	}
+
+	/**
+	 * Maps every value to a promise, with at most {@code parallelism} promises pending at a
+	 * time, and emits their values in input order. The first failing promise fails the stream.
+	 */
+	public <R> PromiseStream<R> mapAsync(int parallelism, IF1<T, Promise<R>> f) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		return new PromiseStream<>(subscriber -> source.subscribe(new MapAsyncSubscriber<>(subscriber, f, parallelism)));
+	}
+
+	/**
+	 * Folds the stream from the left. The returned promise succeeds with the accumulated value
+	 * once the stream completes; cancelling it cancels the stream.
+	 *
+	 * <p>fold :: PromiseStream T -> R -> (R -> T -> R) -> Promise R
+	 */
+	public <R> Promise<R> fold(R initial, IF2<R, T, R> f) {
+		FoldSubscriber<T, R> fold = new FoldSubscriber<>(initial, f);
+		source.subscribe(fold);
+		return fold;
+	}
+
+	/**
+	 * Adds {@code n} to the demand, saturating at {@link Long#MAX_VALUE} (unbounded).
+	 *
+	 * @return the demand before the addition
+	 */
+	static long addDemand(AtomicLong requested, long n) {
+		for (; ; ) {
+			long current = requested.get();
+			if (current == Long.MAX_VALUE) {
+				return Long.MAX_VALUE;
+			}
+			long next = current + n;
+			if (next < 0) {
+				next = Long.MAX_VALUE;
+			}
+			if (requested.compareAndSet(current, next)) {
+				return current;
+			}
+		}
+	}
+
+	/**
+	 * Emits from an iterator as demand allows. Whoever raises the demand from zero runs the
+	 * emission loop; re-entrant requests from onNext only add to the demand.
+	 */
+	private static final class IteratorSubscription<T> implements Flow.Subscription {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final Iterator<T> iterator;
+		private final AtomicLong requested = new AtomicLong(0);
+		private volatile boolean cancelled;
+		/**
+		 * A bad request, signalled by the emitting thread like any other signal.
+		 */
+		private volatile Throwable invalid;
+
+		IteratorSubscription(Flow.Subscriber<? super T> subscriber, Iterator<T> iterator) {
+			this.subscriber = subscriber;
+			this.iterator = iterator;
+		}
+
+		@Override
+		public void request(long n) {
+			if (cancelled) {
+				return;
+			}
+			if (n <= 0) {
+				invalid = new IllegalArgumentException("non-positive request: " + n);
+				// one unit of demand gets an emitter to look at it, or wakes the running one
+				n = 1;
+			}
+			if (addDemand(requested, n) == 0) {
+				emit();
+			}
+		}
+
+		private void emit() {
+			long emitted = 0;
+			long demand = requested.get();
+			for (; ; ) {
+				while (emitted != demand) {
+					if (cancelled) {
+						return;
+					}
+					Throwable error = invalid;
+					if (error != null) {
+						cancelled = true;
+						subscriber.onError(error);
+						return;
+					}
+					T value;
+					try {
+						if (!iterator.hasNext()) {
+							cancelled = true;
+							subscriber.onComplete();
+							return;
+						}
+						value = iterator.next();
+					} catch (RuntimeException e) {
+						cancelled = true;
+						subscriber.onError(e);
+						return;
+					}
+					subscriber.onNext(value);
+					emitted++;
+				}
+				demand = requested.get();
+				if (demand == emitted) {
+					demand = requested.addAndGet(-emitted);
+					if (demand == 0) {
+						return;
+					}
+					emitted = 0;
+				}
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * Base of the one-in, at-most-one-out stages: forwards demand and cancellation upstream
+	 * and stops forwarding signals once done.
+	 */
+	private abstract static class Stage<T, R> implements Flow.Subscriber<T>, Flow.Subscription {
+		final Flow.Subscriber<? super R> downstream;
+		Flow.Subscription upstream;
+		boolean done;
+
+		Stage(Flow.Subscriber<? super R> downstream) {
+			this.downstream = downstream;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.upstream = subscription;
+			downstream.onSubscribe(this);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			if (!done) {
+				done = true;
+				downstream.onError(throwable);
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			if (!done) {
+				done = true;
+				downstream.onComplete();
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			upstream.request(n);
+		}
+
+		@Override
+		public void cancel() {
+			upstream.cancel();
+		}
+
+		/**
+		 * Stops the stage after a user function threw.
+		 */
+		final void fail(RuntimeException e) {
+			upstream.cancel();
+			onError(e);
+		}
+	}
+
+	private static final class MapSubscriber<T, R> extends Stage<T, R> {
+		private final IF1<T, R> f;
+
+		MapSubscriber(Flow.Subscriber<? super R> downstream, IF1<T, R> f) {
+			super(downstream);
+			this.f = f;
+		}
+
+		@Override
+		public void onNext(T item) {
+			if (done) {
+				return;
+			}
+			R value;
+			try {
+				value = f.apply(item);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			downstream.onNext(value);
+		}
+	}
+
+	private static final class FilterSubscriber<T> extends Stage<T, T> {
+		private final IF1<T, Boolean> predicate;
+
+		FilterSubscriber(Flow.Subscriber<? super T> downstream, IF1<T, Boolean> predicate) {
+			super(downstream);
+			this.predicate = predicate;
+		}
+
+		@Override
+		public void onNext(T item) {
+			if (done) {
+				return;
+			}
+			boolean pass;
+			try {
+				pass = predicate.apply(item);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			if (pass) {
+				downstream.onNext(item);
+			} else {
+				// the dropped value used up a unit of demand, replace it
+				upstream.request(1);
+			}
+		}
+	}
+
+	private static final class TakeSubscriber<T> extends Stage<T, T> {
+		private final long limit;
+		private final AtomicLong requestedUpstream = new AtomicLong(0);
+		private long taken;
+
+		TakeSubscriber(Flow.Subscriber<? super T> downstream, long limit) {
+			super(downstream);
+			this.limit = limit;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			super.onSubscribe(subscription);
+			if (limit == 0) {
+				upstream.cancel();
+				onComplete();
+			}
+		}
+
+		@Override
+		public void onNext(T item) {
+			if (done) {
+				return;
+			}
+			downstream.onNext(item);
+			if (++taken == limit) {
+				upstream.cancel();
+				onComplete();
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				upstream.request(n);
+				return;
+			}
+			for (; ; ) {
+				long current = requestedUpstream.get();
+				long grant = Math.min(n, limit - current);
+				if (grant <= 0) {
+					return;
+				}
+				if (requestedUpstream.compareAndSet(current, current + grant)) {
+					upstream.request(grant);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps up to {@code parallelism} promises in a FIFO and emits the head whenever it is done
+	 * and the downstream has demand. Emission is serialized by a work-in-progress counter, so
+	 * it can be driven from onNext, from promise completion or from request.
+	 */
+	private static final class MapAsyncSubscriber<T, R> extends Stage<T, R> {
+		private final IF1<T, Promise<R>> f;
+		private final int parallelism;
+		private final Queue<Promise<R>> inFlight = new ConcurrentLinkedQueue<>();
+		private final AtomicLong requested = new AtomicLong(0);
+		private final AtomicInteger wip = new AtomicInteger(0);
+		private volatile boolean upstreamDone;
+		private volatile Throwable upstreamError;
+		private volatile Throwable invalid;
+		private volatile boolean cancelled;
+
+		MapAsyncSubscriber(Flow.Subscriber<? super R> downstream, IF1<T, Promise<R>> f, int parallelism) {
+			super(downstream);
+			this.f = f;
+			this.parallelism = parallelism;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			super.onSubscribe(subscription);
+			subscription.request(parallelism);
+		}
+
+		@Override
+		public void onNext(T item) {
+			if (upstreamDone || cancelled) {
+				return;
+			}
+			Promise<R> promise;
+			try {
+				promise = Objects.requireNonNull(f.apply(item), "mapAsync function returned null");
+			} catch (RuntimeException e) {
+				upstream.cancel();
+				onError(e);
+				return;
+			}
+			inFlight.add(promise);
+			promise.addListener(v -> drain(), e -> drain());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			upstreamError = throwable;
+			upstreamDone = true;
+			drain();
+		}
+
+		@Override
+		public void onComplete() {
+			upstreamDone = true;
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				// signalled by the drain, which may be emitting on another thread right now
+				invalid = new IllegalArgumentException("non-positive request: " + n);
+				cancel();
+				return;
+			}
+			addDemand(requested, n);
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			upstream.cancel();
+			drain();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			for (; ; ) {
+				if (cancelled) {
+					Promise<R> promise;
+					while ((promise = inFlight.poll()) != null) {
+						promise.cancel(true);
+					}
+					Throwable error = invalid;
+					if (error != null) {
+						super.onError(error);
+					}
+				} else if (!done) {
+					emitReady();
+				}
+				missed = wip.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		private void emitReady() {
+			for (; ; ) {
+				Promise<R> head = inFlight.peek();
+				if (head == null) {
+					if (upstreamDone) {
+						finish();
+					}
+					return;
+				}
+				Promise.State state = head.state();
+				if (state == Promise.State.PENDING) {
+					return;
+				}
+				if (state != Promise.State.SUCCEEDED) {
+					upstream.cancel();
+					cancelled = true;
+					super.onError(head.getException());
+					return;
+				}
+				if (requested.get() == 0) {
+					return;
+				}
+				inFlight.poll();
+				if (requested.get() != Long.MAX_VALUE) {
+					requested.decrementAndGet();
+				}
+				downstream.onNext(head.getValue());
+				if (!upstreamDone) {
+					upstream.request(1);
+				}
+			}
+		}
+
+		private void finish() {
+			Throwable error = upstreamError;
+			if (error != null) {
+				super.onError(error);
+			} else {
+				super.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Terminal stage of {@link #fold}. Requests in batches and replenishes as it consumes.
+	 */
+	private static final class FoldSubscriber<T, R> extends Promise<R> implements Flow.Subscriber<T> {
+		private static final int BATCH = 64;
+
+		private final IF2<R, T, R> f;
+		private volatile Flow.Subscription subscription;
+		private R accumulator;
+		private int consumed;
+
+		FoldSubscriber(R initial, IF2<R, T, R> f) {
+			this.accumulator = initial;
+			this.f = f;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+			if (isDone()) {
+				s.cancel();
+			} else {
+				s.request(BATCH);
+			}
+		}
+
+		@Override
+		public void onNext(T item) {
+			if (isDone()) {
+				return;
+			}
+			try {
+				accumulator = f.apply(accumulator, item);
+			} catch (RuntimeException e) {
+				subscription.cancel();
+				notifyFailure(e);
+				return;
+			}
+			if (++consumed == BATCH) {
+				consumed = 0;
+				subscription.request(BATCH);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			notifyFailure(throwable instanceof Exception ? (Exception) throwable : new Exception(throwable));
+		}
+
+		@Override
+		public void onComplete() {
+			notifySuccess(accumulator);
+		}
+
+		@Override
+		void onCancelled(boolean mayInterruptIfRunning) {
+			Flow.Subscription s = subscription;
+			if (s != null) {
+				s.cancel();
+			}
+		}
+	}
+}
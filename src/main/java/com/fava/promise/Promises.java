@@ -3,14 +3,22 @@ package com.fava.promise;
 import com.fava.Currying;
 import com.fava.Functions.IF1;
 import com.fava.Functions.IF2;
-import com.fava.data.Lists;
 import com.fava.promise.Promise.Listener;
 
-import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -40,107 +48,164 @@ public class Promises {
 		return Promises.<T, R>fmap().apply(f);
 	}
 
+	/**
+	 * Lifts a function of type {@code T1 -> T2 -> R} into a function of type
+	 * {@code Promise<T1> -> Promise<T2> -> Promise<R>}. The function runs on whichever thread
+	 * completes the last input; the first failing input fails the result right away.
+	 */
 	public static <T1, T2, R> Currying.F2<Promise<T1>, Promise<T2>, Promise<R>> liftA(final Currying.F2<T1, T2, R> f) {
 		return new Currying.F2<>() {
-			private WeakReference<T1> value1 = new WeakReference<>(null);
-			private WeakReference<Exception> e = new WeakReference<>(null);
-
 			@Override
 			public Promise<R> apply(Promise<T1> promiseT1, Promise<T2> promiseT2) {
+				return new Join2<>(f, promiseT1, promiseT2);
+			}
+		};
+	}
 
-				Promise<R> result = new Promise<>() {
-				};
-				CountDownLatch cdl = new CountDownLatch(1);
-
-				promiseT1.addListener(v -> {
-					value1 = new WeakReference<>(v);
-					cdl.countDown();
-				}, exception -> {
-					e = new WeakReference<>(exception);
-					cdl.countDown();
-				});
-
-				promiseT2.addListener(v -> {
-					try {
-						cdl.await();
-					} catch (InterruptedException ex) {
-						throw new RuntimeException(ex);
-					}
-					if (e.get() == null) {
-						result.notifySuccess(f.apply(value1.get(), v));
-					} else {
-						result.notifyFailure(e.get());
-					}
-				}, exception -> {
-					try {
-						cdl.await();
-					} catch (InterruptedException ex) {
-						throw new RuntimeException(ex);
-					}
-					result.notifyFailure(e.get() == null ? exception : e.get());
-				});
-				return result;
+	/**
+	 * Lifts a function of type {@code T1 -> T2 -> T3 -> R} into a function of type
+	 * {@code Promise<T1> -> Promise<T2> -> Promise<T3> -> Promise<R>}, see {@link #liftA(Currying.F2)}.
+	 */
+	public static <T1, T2, T3, R> Currying.F3<Promise<T1>, Promise<T2>, Promise<T3>, Promise<R>> liftA(
+			final Currying.F3<T1, T2, T3, R> f
+	) {
+		return new Currying.F3<>() {
+			@Override
+			public Promise<R> apply(Promise<T1> promiseT1, Promise<T2> promiseT2, Promise<T3> promiseT3) {
+				return new Join3<>(f, promiseT1, promiseT2, promiseT3);
 			}
 		};
 	}
 
 	/**
-	 * This method perform like async map
+	 * This method perform like async map: the function runs once every promise has
+	 * succeeded, on the thread that completed the last one. If any promise fails, the
+	 * result fails with the first failure, after all of them have settled.
 	 */
 	public static <T, R> Currying.F1<List<Promise<T>>, Promise<R>> liftA(final Currying.F1<List<T>, R> f) {
 		return new Currying.F1<>() {
 			@Override
 			public Promise<R> apply(final List<Promise<T>> promisesT) {
-				CountDownLatch cdl = new CountDownLatch(promisesT.size());
-				Exception[] hasFailed = {null};
-				for (Promise<T> promiseT : promisesT) {
-					promiseT.addListener(
-							v -> cdl.countDown(),
-							exception -> {
-								cdl.countDown();
-								hasFailed[0] = exception;
-							}
-					);
-				}
-				// block, can also use ForJoinPool.managerBlock() like pseudocode
-				// PromiseR res = new PromiseR(); block { res.notifySuccess(f.apply(promisesT.map(Promise::getValue))) }
-				return Promise.fulfillInAsync(() -> {
-					cdl.await();
-					if (hasFailed[0] != null) {
-						// don't know how to handle side effects, so we just throw an exception.
-						throw new Exception("liftA: some promise failed.", hasFailed[0]);
-					} else {
-						return f.apply(Lists.map(Promises.getValue(), promisesT));
-					}
-				});
+				return all(promisesT).fmap(f);
 			}
+		};
+	}
 
-			@Deprecated
-			private void notifyIfDone(List<Promise<T>> promisesT, Promise<R> promiseR) {
-				Promise.State state = getState(promisesT);
-				if (state == Promise.State.SUCCEEDED) {
-					R value = f.apply(Lists.map(Promises.getValue(), promisesT));
-					promiseR.notifySuccess(value);
-				} else if (state == Promise.State.FAILED) {
-					promiseR.notifyFailure(new Exception());
-				}
-			}
+	/**
+	 * Collects the values of the promises in input order, once all of them have settled. If
+	 * any promise fails, the result fails with the first failure.
+	 *
+	 * <p>all :: [Promise T] -> Promise [T]
+	 */
+	public static <T> Promise<List<T>> all(final List<Promise<T>> promises) {
+		return all(promises, false);
+	}
 
-			@Deprecated
-			private Promise.State getState(List<Promise<T>> promises) {
-				boolean hasFailure = false;
-				for (Promise<?> promise : promises) {
-					if (promise.state() == Promise.State.PENDING) {
-						throw new IllegalStateException("Promise is not done.");
-					}
+	/**
+	 * Collects the values of the promises in input order. With {@code failFast} the result
+	 * fails as soon as the first failure arrives, without waiting for the other promises.
+	 *
+	 * <p>No thread is blocked: an atomic counter tracks the pending promises and the last one
+	 * to succeed completes the result.
+	 */
+	public static <T> Promise<List<T>> all(final List<Promise<T>> promises, final boolean failFast) {
+		if (promises.isEmpty()) {
+			return Promise.unit(new ArrayList<>());
+		}
+		AllJoin<T> join = new AllJoin<>(promises.size(), failFast);
+		int index = 0;
+		for (Promise<T> promise : promises) {
+			join.listenTo(promise, index++);
+		}
+		return join;
+	}
 
-					if (promise.state() == Promise.State.FAILED) {
-						hasFailure = true;
-					}
-				}
-				return hasFailure ? Promise.State.FAILED : Promise.State.SUCCEEDED;
+	/**
+	 * Maps every item through {@code f} and collects the values in input order, with at most
+	 * {@code parallelism} of the returned promises pending at once: the next item is only
+	 * mapped when one of them succeeds. The first failure fails the result, cancels the
+	 * promises in flight and stops mapping; cancelling the result does the same.
+	 *
+	 * <p>No thread is blocked: each value is written into a pre-sized array by index, and the
+	 * last one to arrive completes the result.
+	 *
+	 * <p>traverse :: [T] -> (T -> Promise R) -> Int -> Promise [R]
+	 */
+	public static <T, R> Promise<List<R>> traverse(final List<? extends T> items, final IF1<T, Promise<R>> f,
+	                                               final int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		if (items.isEmpty()) {
+			return Promise.unit(new ArrayList<>());
+		}
+		Traverse<T, R> traverse = new Traverse<>(items.toArray(), f);
+		traverse.start(parallelism);
+		return traverse;
+	}
+
+	/**
+	 * Runs the tasks on {@link PromiseExecutors#current()}, at most {@code parallelism} at once,
+	 * and collects their values in input order, see {@link #traverse}.
+	 *
+	 * <p>sequence :: [IO T] -> Int -> Promise [T]
+	 */
+	public static <T> Promise<List<T>> sequence(final List<? extends Callable<T>> tasks, final int parallelism) {
+		return traverse(tasks, Promise::fulfillInAsync, parallelism);
+	}
+
+	/**
+	 * Settles like the first of the promises to settle, success or failure. The promises that
+	 * are still pending at that point are cancelled.
+	 *
+	 * <p>race :: [Promise T] -> Promise T
+	 */
+	public static <T> Promise<T> race(final List<Promise<T>> promises) {
+		if (promises.isEmpty()) {
+			return Promise.failure(new IllegalArgumentException("race of no promises"));
+		}
+		return new Selection<T, T>(promises) {
+			@Override
+			void succeeded(int index, T value) {
+				notifySuccess(value);
+				release();
 			}
-		};
+
+			@Override
+			void failed(int index, Exception exception) {
+				notifyFailure(exception);
+				release();
+			}
+		}.start();
+	}
+
+	/**
+	 * Succeeds with the first of the promises to succeed, and cancels the others. If every
+	 * promise fails, the result fails with an exception carrying each failure as suppressed.
+	 *
+	 * <p>any :: [Promise T] -> Promise T
+	 */
+	public static <T> Promise<T> any(final List<Promise<T>> promises) {
+		IF1<List<T>, T> first = values -> values.get(0);
+		return firstN(promises, 1).fmap(first);
+	}
+
+	/**
+	 * Succeeds with the values of the first {@code n} promises to succeed, in the order they
+	 * succeeded, and cancels the others. Fails as soon as so many promises have failed that
+	 * {@code n} successes are out of reach, carrying each failure as suppressed.
+	 *
+	 * <p>firstN :: [Promise T] -> Int -> Promise [T]
+	 */
+	public static <T> Promise<List<T>> firstN(final List<Promise<T>> promises, final int n) {
+		if (n <= 0) {
+			return Promise.unit(new ArrayList<>());
+		}
+		if (n > promises.size()) {
+			return Promise.failure(new IllegalArgumentException(
+					"cannot take " + n + " of " + promises.size() + " promises"));
+		}
+		return new FirstN<>(promises, n).start();
 	}
 
 	/**
@@ -151,10 +216,12 @@ public class Promises {
 	public static <T> Promise<T> join(final Promise<Promise<T>> promiseOfPromiseT) {
 
 		final Promise<T> promiseT = new Promise<T>();
+		promiseT.dependOn(promiseOfPromiseT);
 
 		promiseOfPromiseT.addListener(new Listener<>() {
 			@Override
 			public void onSuccess(Promise<T> p) {
+				promiseT.dependOn(p);
 				p.addListener(new Listener<T>() {
 					@Override
 					public void onSuccess(T value) {
@@ -212,24 +279,472 @@ public class Promises {
 		return Promise::getValue;
 	}
 
+	/**
+	 * Returns a function that starts a batch of tasks with at most {@code maxIORequests} of
+	 * them running at once. Tasks over the limit are queued and started as permits free up;
+	 * they don't occupy pool threads while waiting. See {@link Throttle}.
+	 */
 	public static <V, I extends Iterable<Callable<V>>> Currying.F1<I, List<Promise<V>>> trySpawnBatch(
 			int maxIORequests
 	) {
-		Semaphore semaphore = new Semaphore(maxIORequests);
+		Throttle throttle = new Throttle(maxIORequests);
 		IF1<I, List<Promise<V>>> res = callables -> StreamSupport.stream(
 				callables.spliterator(),
 				false
-		).map(c -> Promise.fulfillInAsync(() -> {
-			semaphore.acquire();
-			// heavy IO operation
-			V v = c.call();
-			semaphore.release();
-			return v;
-		})).collect(Collectors.toList());
-		// to stream
+		).map(throttle::<V>submit).collect(Collectors.toList());
 		return Currying.curry(res);
 	}
 
+	/**
+	 * Lazy form of {@link #trySpawnBatch(int)}: pulls tasks from {@code callables} only as
+	 * permits free up and hands each started task's promise to {@code sink}, so the input is
+	 * never materialized.
+	 *
+	 * @return a promise that succeeds once every task is over
+	 */
+	public static <V> Promise<Void> spawnEach(
+			Iterable<? extends Callable<V>> callables,
+			int maxIORequests,
+			Consumer<Promise<V>> sink
+	) {
+		return new Throttle(maxIORequests).forEach(callables.iterator(), sink);
+	}
+
+	/**
+	 * Runs the task after every task submitted before it for the same key, while tasks for other
+	 * keys run in parallel. Keys are hashed onto the serial lanes of
+	 * {@link StripedExecutor#shared()}; cancelling the promise before the task starts skips it.
+	 */
+	public static <T> Promise<T> fulfillInAsync(Object key, Callable<T> task) {
+		return StripedExecutor.shared().submit(key, task);
+	}
+
+	/**
+	 * Returns a function that coalesces per-key lookups into batch calls, DataLoader style. Keys
+	 * requested within {@code maxDelay} of the first one, up to {@code maxBatch} of them, are
+	 * deduplicated and passed to one call of {@code batchFn}, which runs on
+	 * {@link PromiseExecutors#current()}. Each caller's promise then gets the value mapped to its
+	 * key; a key missing from the map fails with a {@link java.util.NoSuchElementException}, and
+	 * a failing batch fails every promise in it.
+	 */
+	public static <K, V> IF1<K, Promise<V>> batcher(IF1<List<K>, Map<K, V>> batchFn, int maxBatch, Duration maxDelay) {
+		return new Batcher<>(batchFn, maxBatch, maxDelay.toNanos(), null);
+	}
+
+	/**
+	 * {@link #batcher(IF1, int, Duration)} running the batch function on the given executor.
+	 */
+	public static <K, V> IF1<K, Promise<V>> batcher(
+			IF1<List<K>, Map<K, V>> batchFn, int maxBatch, Duration maxDelay, Executor executor
+	) {
+		return new Batcher<>(batchFn, maxBatch, maxDelay.toNanos(), executor);
+	}
+
+	/**
+	 * Runs the task on {@link PromiseExecutors#current()}, and runs it again as long as it fails
+	 * and {@code policy} allows. The delays between attempts are scheduled on the shared
+	 * {@link WheelTimer}, so a pending retry holds no thread. The returned promise has the outcome
+	 * of the last attempt; cancelling it cancels the attempt in flight and stops retrying.
+	 */
+	public static <T> Promise<T> retry(Callable<T> task, RetryPolicy policy) {
+		return retry(task, policy, PromiseExecutors.current());
+	}
+
+	/**
+	 * {@link #retry(Callable, RetryPolicy)} running every attempt on the given executor.
+	 */
+	public static <T> Promise<T> retry(Callable<T> task, RetryPolicy policy, Executor executor) {
+		return new Retry<>(task, policy, executor).start();
+	}
+
+	/**
+	 * Runs the task on {@link PromiseExecutors#current()} and, while no attempt has succeeded,
+	 * starts a duplicate every {@code hedgeDelay}, up to {@code maxHedges} of them. A failed
+	 * attempt is replaced right away. The first success wins and the other attempts are
+	 * cancelled; the result only fails once every attempt has failed, with the first failure.
+	 *
+	 * <p>The delay never changes, as nothing is learnt from one call to the next. For a delay
+	 * that follows the backend's p95, keep a {@link Hedger} per backend and call
+	 * {@link Hedger#hedge} instead.
+	 */
+	public static <T> Promise<T> hedgeWithFixedDelay(Callable<T> task, Duration hedgeDelay, int maxHedges) {
+		return hedgeWithFixedDelay(task, hedgeDelay, maxHedges, PromiseExecutors.current());
+	}
+
+	/**
+	 * {@link #hedgeWithFixedDelay(Callable, Duration, int)} running every attempt on the given
+	 * executor.
+	 */
+	public static <T> Promise<T> hedgeWithFixedDelay(Callable<T> task, Duration hedgeDelay, int maxHedges,
+	                                                 Executor executor) {
+		return new Hedger(hedgeDelay, maxHedges, executor, false).hedge(task);
+	}
+
+	/**
+	 * Join of two promises. It listens to the first input itself, so a call allocates only
+	 * the join and one listener for the second input.
+	 */
+	private static final class Join2<T1, T2, R> extends CountdownJoin<R> implements Listener<T1> {
+		private final Currying.F2<T1, T2, R> f;
+		private T1 value1;
+		private T2 value2;
+
+		Join2(Currying.F2<T1, T2, R> f, Promise<T1> promiseT1, Promise<T2> promiseT2) {
+			super(2);
+			this.f = f;
+			promiseT1.addListener(this);
+			promiseT2.addListener(new Listener<>() {
+				@Override
+				public void onSuccess(T2 value) {
+					value2 = value;
+					arrive();
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					reject(exception);
+				}
+			});
+		}
+
+		@Override
+		public void onSuccess(T1 value) {
+			value1 = value;
+			arrive();
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			reject(exception);
+		}
+
+		@Override
+		R combine() {
+			return f.apply(value1, value2);
+		}
+	}
+
+	private static final class Join3<T1, T2, T3, R> extends CountdownJoin<R> implements Listener<T1> {
+		private final Currying.F3<T1, T2, T3, R> f;
+		private T1 value1;
+		private T2 value2;
+		private T3 value3;
+
+		Join3(Currying.F3<T1, T2, T3, R> f, Promise<T1> promiseT1, Promise<T2> promiseT2, Promise<T3> promiseT3) {
+			super(3);
+			this.f = f;
+			promiseT1.addListener(this);
+			promiseT2.addListener(v -> {
+				value2 = v;
+				arrive();
+			}, this::reject);
+			promiseT3.addListener(v -> {
+				value3 = v;
+				arrive();
+			}, this::reject);
+		}
+
+		@Override
+		public void onSuccess(T1 value) {
+			value1 = value;
+			arrive();
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			reject(exception);
+		}
+
+		@Override
+		R combine() {
+			return f.apply(value1, value2, value3);
+		}
+	}
+
+	/**
+	 * Join over a list of promises, writing each value into a pre-sized array by index.
+	 */
+	private static final class AllJoin<T> extends CountdownJoin<List<T>> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<AllJoin, Exception> FAILURE =
+				AtomicReferenceFieldUpdater.newUpdater(AllJoin.class, Exception.class, "failure");
+
+		private final Object[] values;
+		private final boolean failFast;
+		private volatile Exception failure;
+
+		AllJoin(int size, boolean failFast) {
+			super(size);
+			this.values = new Object[size];
+			this.failFast = failFast;
+		}
+
+		void listenTo(Promise<T> promise, int index) {
+			promise.addListener(new Listener<>() {
+				@Override
+				public void onSuccess(T value) {
+					values[index] = value;
+					arrive();
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					if (failFast) {
+						reject(exception);
+					} else {
+						FAILURE.compareAndSet(AllJoin.this, null, exception);
+						arrive();
+					}
+				}
+			});
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		List<T> combine() throws Exception {
+			if (failure != null) {
+				throw failure;
+			}
+			return (List<T>) Arrays.asList(values);
+		}
+	}
+
+	/**
+	 * The promise of {@link #traverse}. {@code next} hands out the items to map; a slot of
+	 * {@code running} holds the promise of an item while it is in flight, so that a failure or
+	 * a cancellation can cancel it.
+	 */
+	private static final class Traverse<T, R> extends CountdownJoin<List<R>> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Traverse> NEXT =
+				AtomicIntegerFieldUpdater.newUpdater(Traverse.class, "next");
+
+		private final Object[] items;
+		private final IF1<T, Promise<R>> f;
+		private final Object[] values;
+		private final AtomicReferenceArray<Promise<R>> running;
+		private volatile int next;
+
+		Traverse(Object[] items, IF1<T, Promise<R>> f) {
+			super(items.length);
+			this.items = items;
+			this.f = f;
+			this.values = new Object[items.length];
+			this.running = new AtomicReferenceArray<>(items.length);
+		}
+
+		void start(int parallelism) {
+			for (int i = Math.min(parallelism, items.length); i > 0; i--) {
+				launchNext();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void launchNext() {
+			int index;
+			if (isDone() || (index = NEXT.getAndIncrement(this)) >= items.length) {
+				return;
+			}
+			Promise<R> promise;
+			try {
+				promise = f.apply((T) items[index]);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			running.set(index, promise);
+			if (isDone()) {
+				// failed or cancelled meanwhile, release() may have missed this one
+				promise.cancel(true);
+			}
+			promise.addListener(new Listener<>() {
+				@Override
+				public void onSuccess(R value) {
+					running.set(index, null);
+					values[index] = value;
+					launchNext();
+					arrive();
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					fail(exception);
+				}
+			});
+		}
+
+		private void fail(Exception exception) {
+			reject(exception);
+			release();
+		}
+
+		@Override
+		void onCancelled(boolean mayInterruptIfRunning) {
+			release();
+		}
+
+		private void release() {
+			for (int i = 0; i < items.length; i++) {
+				Promise<R> promise = running.getAndSet(i, null);
+				if (promise != null) {
+					promise.cancel(true);
+				}
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		List<R> combine() {
+			return (List<R>) Arrays.asList(values);
+		}
+	}
+
+	/**
+	 * The promise of {@link #retry}. Attempts run one after another, each started by the
+	 * failure of the previous one or by its timeout, so {@code attempts} needs no atomics.
+	 */
+	private static final class Retry<T> extends Promise<T> {
+		private final Callable<T> task;
+		private final RetryPolicy policy;
+		private final Executor executor;
+		private int attempts;
+		private long deadlineNanos;
+		private WheelTimer.Timeout deadline;
+		/**
+		 * The attempt in flight, or the timeout of the next one.
+		 */
+		private volatile Object current;
+
+		Retry(Callable<T> task, RetryPolicy policy, Executor executor) {
+			this.task = task;
+			this.policy = policy;
+			this.executor = executor;
+		}
+
+		Promise<T> start() {
+			Duration limit = policy.deadline();
+			if (limit != null) {
+				deadlineNanos = System.nanoTime() + limit.toNanos();
+				deadline = WheelTimer.shared().schedule(() -> {
+					notifyFailure(new TimeoutException("Retry deadline of " + limit + " passed after " + attempts + " attempts"));
+					stop(true);
+				}, limit.toNanos(), TimeUnit.NANOSECONDS);
+			}
+			attempt();
+			return this;
+		}
+
+		private void attempt() {
+			if (isDone()) {
+				return;
+			}
+			attempts++;
+			Promise<T> attempt = Promise.fulfillInAsync(task, executor);
+			current = attempt;
+			attempt.addListener(value -> {
+				notifySuccess(value);
+				stop(false);
+			}, this::failed);
+			if (isDone()) {
+				// cancelled while we were starting the attempt
+				attempt.cancel(true);
+			}
+		}
+
+		private void failed(Exception exception) {
+			if (isDone()) {
+				return;
+			}
+			long delay;
+			try {
+				if (attempts >= policy.maxAttempts() || !policy.shouldRetry(exception)) {
+					delay = -1;
+				} else {
+					delay = policy.delayNanos(attempts);
+					if (deadline != null && System.nanoTime() + delay >= deadlineNanos) {
+						// the next attempt couldn't start in time
+						delay = -1;
+					}
+				}
+			} catch (RuntimeException e) {
+				exception.addSuppressed(e);
+				delay = -1;
+			}
+			if (delay < 0) {
+				notifyFailure(exception);
+				stop(false);
+				return;
+			}
+			WheelTimer.Timeout next = WheelTimer.shared().schedule(this::attempt, delay, TimeUnit.NANOSECONDS);
+			current = next;
+			if (isDone()) {
+				next.cancel();
+			}
+		}
+
+		@Override
+		void onCancelled(boolean mayInterruptIfRunning) {
+			stop(mayInterruptIfRunning);
+		}
+
+		private void stop(boolean mayInterruptIfRunning) {
+			if (deadline != null) {
+				deadline.cancel();
+			}
+			Object c = current;
+			if (c instanceof Promise) {
+				((Promise<?>) c).cancel(mayInterruptIfRunning);
+			} else if (c instanceof WheelTimer.Timeout) {
+				((WheelTimer.Timeout) c).cancel();
+			}
+		}
+	}
+
+	private static final class FirstN<T> extends Selection<T, List<T>> {
+		private final AtomicInteger successes = new AtomicInteger(0);
+		private final AtomicInteger failures = new AtomicInteger(0);
+		private final AtomicInteger filled = new AtomicInteger(0);
+		private final Object[] values;
+		private final Exception[] errors;
+
+		FirstN(List<Promise<T>> promises, int n) {
+			super(promises);
+			this.values = new Object[n];
+			this.errors = new Exception[promises.size()];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		void succeeded(int index, T value) {
+			int slot = successes.getAndIncrement();
+			if (slot >= values.length) {
+				return;
+			}
+			values[slot] = value;
+			// the slot claims can finish out of order, complete once all n are written
+			if (filled.incrementAndGet() == values.length) {
+				notifySuccess((List<T>) Arrays.asList(values));
+				release();
+			}
+		}
+
+		@Override
+		void failed(int index, Exception exception) {
+			errors[index] = exception;
+			if (failures.incrementAndGet() == size() - values.length + 1) {
+				Exception failure = new Exception(
+						"Too many promises failed, " + values.length + " of " + size() + " required to succeed");
+				for (Exception e : errors) {
+					if (e != null) {
+						failure.addSuppressed(e);
+					}
+				}
+				notifyFailure(failure);
+				release();
+			}
+		}
+	}
+
 	private <T> Listener<T> builderCommonListener() {
 		return new Listener<T>() {
 			@Override
@@ -0,0 +1,122 @@
+package com.fava.promise;
+
+import com.fava.Functions.IF1;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how often {@link Promises#retry} tries a failing task again. Instances are immutable;
+ * the {@code with} methods return a modified copy.
+ *
+ * <p>The delay before retry {@code n} (counting from 1) is {@code initialDelay * multiplier^(n-1)},
+ * capped at {@code maxDelay}, then shortened by a random fraction of at most {@code jitter} so
+ * that clients failing together don't retry together. By default a policy makes at most 3
+ * attempts, retries on every exception except a {@link CancellationException}, and has no
+ * deadline.
+ */
+public final class RetryPolicy {
+	private final long initialDelayNanos;
+	private final long maxDelayNanos;
+	private final double multiplier;
+	private final double jitter;
+	private final int maxAttempts;
+	private final IF1<Exception, Boolean> retryOn;
+	private final Duration deadline;
+
+	private RetryPolicy(long initialDelayNanos, long maxDelayNanos, double multiplier, double jitter,
+	                    int maxAttempts, IF1<Exception, Boolean> retryOn, Duration deadline) {
+		this.initialDelayNanos = initialDelayNanos;
+		this.maxDelayNanos = maxDelayNanos;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+		this.maxAttempts = maxAttempts;
+		this.retryOn = retryOn;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Delays doubling from {@code initialDelay} up to {@code maxDelay}, with 20% jitter.
+	 */
+	public static RetryPolicy exponential(Duration initialDelay, Duration maxDelay) {
+		return new RetryPolicy(initialDelay.toNanos(), maxDelay.toNanos(), 2.0, 0.2, 3,
+				e -> !(e instanceof CancellationException), null);
+	}
+
+	/**
+	 * The same delay before every retry, without jitter.
+	 */
+	public static RetryPolicy fixed(Duration delay) {
+		return exponential(delay, delay).withMultiplier(1.0).withJitter(0.0);
+	}
+
+	/**
+	 * @param maxAttempts attempts in total, the first one included
+	 */
+	public RetryPolicy withMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		return new RetryPolicy(initialDelayNanos, maxDelayNanos, multiplier, jitter, maxAttempts, retryOn, deadline);
+	}
+
+	public RetryPolicy withMultiplier(double multiplier) {
+		if (multiplier < 1.0) {
+			throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+		}
+		return new RetryPolicy(initialDelayNanos, maxDelayNanos, multiplier, jitter, maxAttempts, retryOn, deadline);
+	}
+
+	/**
+	 * @param jitter the largest fraction of a delay that may be randomly cut off, within [0, 1]
+	 */
+	public RetryPolicy withJitter(double jitter) {
+		if (jitter < 0.0 || jitter > 1.0) {
+			throw new IllegalArgumentException("jitter must be within [0, 1]: " + jitter);
+		}
+		return new RetryPolicy(initialDelayNanos, maxDelayNanos, multiplier, jitter, maxAttempts, retryOn, deadline);
+	}
+
+	/**
+	 * Only failures for which {@code predicate} returns true are retried; others fail the retry
+	 * right away.
+	 */
+	public RetryPolicy retryOn(IF1<Exception, Boolean> predicate) {
+		return new RetryPolicy(initialDelayNanos, maxDelayNanos, multiplier, jitter, maxAttempts, predicate, deadline);
+	}
+
+	/**
+	 * Bounds the whole retry, delays included: once {@code deadline} has passed since the first
+	 * attempt started, the attempt in flight is cancelled and the retry fails with a
+	 * {@link java.util.concurrent.TimeoutException}.
+	 */
+	public RetryPolicy withDeadline(Duration deadline) {
+		return new RetryPolicy(initialDelayNanos, maxDelayNanos, multiplier, jitter, maxAttempts, retryOn, deadline);
+	}
+
+	int maxAttempts() {
+		return maxAttempts;
+	}
+
+	Duration deadline() {
+		return deadline;
+	}
+
+	boolean shouldRetry(Exception exception) {
+		Boolean retry = retryOn.apply(exception);
+		return retry != null && retry;
+	}
+
+	/**
+	 * The delay before retry number {@code retry}, counting from 1.
+	 */
+	long delayNanos(int retry) {
+		double delay = initialDelayNanos * Math.pow(multiplier, retry - 1);
+		long capped = (long) Math.min(delay, maxDelayNanos);
+		if (jitter == 0.0) {
+			return capped;
+		}
+		return (long) (capped * (1.0 - jitter * ThreadLocalRandom.current().nextDouble()));
+	}
+}
@@ -0,0 +1,91 @@
+package com.fava.promise;
+
+import java.util.List;
+
+/**
+ * A promise that picks its outcome from the first few of several input promises to settle.
+ *
+ * <p>Each input gets a {@link Slot} listener that only points back to the selection while it
+ * is pending. Once the selection is done, {@link #release()} detaches every slot and cancels
+ * the inputs that are still pending, so a slow loser keeps neither the selection nor whatever
+ * listens to it alive.
+ */
+abstract class Selection<T, R> extends Promise<R> {
+	private final Promise<T>[] inputs;
+	private final Slot<T>[] slots;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	Selection(List<Promise<T>> inputs) {
+		this.inputs = inputs.toArray(new Promise[0]);
+		this.slots = new Slot[this.inputs.length];
+	}
+
+	/**
+	 * Registers the slots. Called by the factory once the subclass is fully constructed, since
+	 * an input that is already done reports to the selection right away.
+	 */
+	final Selection<T, R> start() {
+		for (int i = 0; i < inputs.length && state() == State.PENDING; i++) {
+			slots[i] = new Slot<>(this, i);
+			inputs[i].addListener(slots[i]);
+		}
+		if (state() != State.PENDING) {
+			release();
+		}
+		return this;
+	}
+
+	final int size() {
+		return inputs.length;
+	}
+
+	abstract void succeeded(int index, T value);
+
+	abstract void failed(int index, Exception exception);
+
+	@Override
+	void onCancelled(boolean mayInterruptIfRunning) {
+		release();
+	}
+
+	/**
+	 * Called by the subclass after it completed the selection. Safe to call more than once.
+	 */
+	final void release() {
+		for (int i = 0; i < slots.length; i++) {
+			Slot<T> slot = slots[i];
+			if (slot != null) {
+				slot.owner = null;
+			}
+			if (inputs[i].state() == State.PENDING) {
+				inputs[i].cancel(true);
+			}
+		}
+	}
+
+	private static final class Slot<T> implements Listener<T> {
+		private final int index;
+		private volatile Selection<T, ?> owner;
+
+		Slot(Selection<T, ?> owner, int index) {
+			this.owner = owner;
+			this.index = index;
+		}
+
+		@Override
+		public void onSuccess(T value) {
+			Selection<T, ?> s = owner;
+			if (s != null) {
+				s.succeeded(index, value);
+			}
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			Selection<T, ?> s = owner;
+			if (s != null) {
+				s.failed(index, exception);
+			}
+		}
+	}
+}
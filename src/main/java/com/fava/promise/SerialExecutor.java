@@ -0,0 +1,12 @@
+package com.fava.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that runs its tasks one at a time, in order, on threads of its own choosing:
+ * an {@link EventLoop} or a lane of a {@link StripedExecutor}. {@link Promise#join()} never
+ * runs a task queued on one of them, since that would run it out of order, alongside the task
+ * before it, or off its loop.
+ */
+interface SerialExecutor extends Executor {
+}
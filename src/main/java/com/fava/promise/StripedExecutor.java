@@ -0,0 +1,139 @@
+package com.fava.promise;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks for the same key in submission order, and tasks for different keys in parallel.
+ * Keys are hashed onto a fixed number of serial lanes; a lane runs one task at a time, on the
+ * threads of a backing executor.
+ *
+ * <p>A lane is a lock-free queue plus a counter of queued tasks. The submitter that brings the
+ * counter from zero to one schedules a drain on the backing executor, which then runs the
+ * lane's tasks one after another on its thread until the counter drops back to zero. Busy lanes
+ * thus pay one executor hand-off per batch, not per task. After {@link #MAX_BATCH} tasks a
+ * drain re-submits itself, so a hot lane doesn't hold a pool thread forever.
+ */
+public final class StripedExecutor {
+	/**
+	 * Tasks a lane runs before it yields its thread to the backing executor.
+	 */
+	static final int MAX_BATCH = 256;
+
+	private static final Object lock = new Object();
+	private static volatile StripedExecutor shared;
+
+	private final Lane[] lanes;
+
+	/**
+	 * @param executor runs the lanes; it needs no ordering guarantee of its own
+	 */
+	public StripedExecutor(int lanes, Executor executor) {
+		if (lanes <= 0) {
+			throw new IllegalArgumentException("lanes must be positive: " + lanes);
+		}
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = new Lane(executor);
+		}
+	}
+
+	/**
+	 * The executor of {@link Promises#fulfillInAsync(Object, Callable)}: one lane per available
+	 * processor, on {@link PromiseExecutors#current()}.
+	 */
+	public static StripedExecutor shared() {
+		StripedExecutor executor = shared;
+		if (executor == null) {
+			synchronized (lock) {
+				executor = shared;
+				if (executor == null) {
+					executor = new StripedExecutor(Runtime.getRuntime().availableProcessors(),
+							task -> PromiseExecutors.current().execute(task));
+					shared = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs the task on the lane of {@code key}, after every task submitted for a key of the
+	 * same lane before it.
+	 */
+	public <T> Promise<T> submit(Object key, Callable<T> task) {
+		return Promise.fulfillInAsync(task, lane(key));
+	}
+
+	/**
+	 * The serial executor that {@code key} is hashed onto.
+	 */
+	public Executor lane(Object key) {
+		return lanes[laneOf(key)];
+	}
+
+	public int laneOf(Object key) {
+		int h = key.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), lanes.length);
+	}
+
+	public int lanes() {
+		return lanes.length;
+	}
+
+	/**
+	 * Tasks queued on {@code lane}, the running one included.
+	 */
+	public int queueDepth(int lane) {
+		return lanes[lane].depth.get();
+	}
+
+	private static final class Lane implements SerialExecutor, Runnable {
+		private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger depth = new AtomicInteger(0);
+		private final Executor executor;
+
+		Lane(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			// queue first: a drain only counts tasks it can already poll
+			queue.offer(task);
+			if (depth.getAndIncrement() == 0) {
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// keep the lane moving on the caller, the tasks are already queued
+				run();
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_BATCH; i++) {
+				Runnable task = queue.poll();
+				try {
+					task.run();
+				} catch (Throwable e) {
+					// a failing task must not leave the lane stuck with queued work
+					Thread t = Thread.currentThread();
+					t.getUncaughtExceptionHandler().uncaughtException(t, e);
+				}
+				if (depth.decrementAndGet() == 0) {
+					return;
+				}
+			}
+			schedule();
+		}
+	}
+}
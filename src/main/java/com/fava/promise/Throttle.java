@@ -0,0 +1,191 @@
+package com.fava.promise;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs asynchronous tasks with at most {@code maxConcurrency} of them in flight.
+ *
+ * <p>Tasks over the limit wait in a lock-free queue instead of occupying a pool thread. A
+ * permit is taken when a task starts and returned when it is over, whether it succeeded,
+ * failed, was cancelled or was rejected by the executor; returning a permit starts the next
+ * queued task. One thread at a time starts queued tasks, the others only tell it to look
+ * again, so an executor that runs tasks on the calling thread doesn't nest a start per
+ * queued task.
+ */
+public final class Throttle {
+	private final Queue<Job<?>> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger permits;
+	private final AtomicInteger wip = new AtomicInteger(0);
+	private final int maxConcurrency;
+	private final Executor executor;
+
+	/**
+	 * Runs tasks on the executor returned by {@link PromiseExecutors#current()}.
+	 */
+	public Throttle(int maxConcurrency) {
+		this(maxConcurrency, PromiseExecutors.current());
+	}
+
+	public Throttle(int maxConcurrency, Executor executor) {
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new AtomicInteger(maxConcurrency);
+		this.executor = executor;
+	}
+
+	/**
+	 * Queues the task; it starts as soon as a permit is free.
+	 */
+	public <V> Promise<V> submit(Callable<V> task) {
+		Job<V> job = new Job<>(task);
+		queue.add(job);
+		drain();
+		return job.promise;
+	}
+
+	/**
+	 * Streams the tasks of {@code source} through the throttle. The next task is only pulled
+	 * from the iterator once one of ours is over, so at most {@code maxConcurrency} tasks of this
+	 * source exist at a time and the source can be unbounded. Every started task's promise is
+	 * handed to {@code sink}.
+	 *
+	 * @return a promise that succeeds once the source is exhausted and all its tasks are over
+	 */
+	public <V> Promise<Void> forEach(Iterator<? extends Callable<V>> source, Consumer<Promise<V>> sink) {
+		return new Feeder<>(source, sink).start();
+	}
+
+	/**
+	 * Number of tasks running right now.
+	 */
+	public int inFlight() {
+		return maxConcurrency - permits.get();
+	}
+
+	/**
+	 * Number of submitted tasks waiting for a permit.
+	 */
+	public int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * Starts queued jobs while permits are free. Called after every enqueue and every permit
+	 * release, so whichever of the two happens last starts the job. A call made while another
+	 * one is draining, even from within a job it started, only makes it go round once more.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		for (; ; ) {
+			startQueued();
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	private void startQueued() {
+		for (; ; ) {
+			int available = permits.get();
+			if (available == 0 || queue.isEmpty()) {
+				return;
+			}
+			if (!permits.compareAndSet(available, available - 1)) {
+				continue;
+			}
+			Job<?> job = queue.poll();
+			if (job == null) {
+				permits.incrementAndGet();
+				continue;
+			}
+			job.start();
+		}
+	}
+
+	private void release() {
+		permits.incrementAndGet();
+		drain();
+	}
+
+	private final class Job<V> {
+		final Promise<V> promise = new Promise<>();
+		final Callable<V> task;
+
+		Job(Callable<V> task) {
+			this.task = task;
+		}
+
+		void start() {
+			promise.fulfillOn(task, executor, Throttle.this::release);
+		}
+	}
+
+	/**
+	 * Pulls from a source, keeping up to {@code maxConcurrency} of its tasks submitted.
+	 */
+	private final class Feeder<V> extends CountdownJoin<Void> {
+		private final Iterator<? extends Callable<V>> source;
+		private final Consumer<Promise<V>> sink;
+
+		Feeder(Iterator<? extends Callable<V>> source, Consumer<Promise<V>> sink) {
+			// one count per lane, each lane arrives when the source runs dry
+			super(maxConcurrency);
+			this.source = source;
+			this.sink = sink;
+		}
+
+		Promise<Void> start() {
+			for (int i = 0; i < maxConcurrency; i++) {
+				next();
+			}
+			return this;
+		}
+
+		private void next() {
+			if (isDone()) {
+				// failed or cancelled, stop pulling
+				return;
+			}
+			Callable<V> task = null;
+			Promise<V> promise = null;
+			try {
+				synchronized (source) {
+					if (source.hasNext()) {
+						task = Objects.requireNonNull(source.next(), "the source returned a null task");
+					}
+				}
+				if (task != null) {
+					promise = submit(task);
+					sink.accept(promise);
+				}
+			} catch (RuntimeException e) {
+				// the lane would never arrive, fail the feeder instead
+				reject(e);
+				return;
+			}
+			if (promise == null) {
+				arrive();
+				return;
+			}
+			promise.addListener(v -> next(), e -> next());
+		}
+
+		@Override
+		Void combine() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.fava.promise;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed wheel timer: one daemon thread serves every pending deadline, so the cost of a
+ * timeout is one small object in a bucket rather than a scheduled task or a parked thread.
+ *
+ * <p>New timeouts go through a lock-free queue and are moved into their bucket by the worker,
+ * so the wheel itself is only touched by one thread. Expired tasks run on the worker thread
+ * and must be short; completing a promise is the intended use.
+ */
+final class WheelTimer {
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final int WHEEL_SIZE = 512;
+	private static final WheelTimer SHARED = new WheelTimer("fava-wheel-timer");
+
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private final String name;
+	private final long startTime = System.nanoTime();
+	private volatile Thread worker;
+	private long tick;
+	private int activeTimeouts;
+
+	WheelTimer(String name) {
+		this.name = name;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * The timer shared by every promise in the JVM.
+	 */
+	static WheelTimer shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Runs the task on the timer thread once the delay has elapsed, unless the returned
+	 * timeout is cancelled first.
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+		pending.add(timeout);
+		if (started.compareAndSet(false, true)) {
+			Thread t = new Thread(this::run, name);
+			t.setDaemon(true);
+			worker = t;
+			t.start();
+		} else {
+			LockSupport.unpark(worker);
+		}
+		return timeout;
+	}
+
+	private void run() {
+		for (; ; ) {
+			long deadline = TICK_NANOS * (tick + 1);
+			for (; ; ) {
+				long now = System.nanoTime() - startTime;
+				if (now >= deadline) {
+					break;
+				}
+				if (activeTimeouts == 0 && pending.isEmpty()) {
+					// nothing to wait for, sleep until the next schedule() wakes us up
+					LockSupport.park(this);
+					// the wheel is empty, so skip the ticks that passed while idle
+					tick = (System.nanoTime() - startTime) / TICK_NANOS;
+					deadline = TICK_NANOS * (tick + 1);
+					transferPending();
+				} else {
+					LockSupport.parkNanos(this, deadline - now);
+				}
+			}
+			transferPending();
+			wheel[(int) (tick & (WHEEL_SIZE - 1))].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			long calculated = timeout.deadline / TICK_NANOS;
+			// never schedule into the past, those timeouts fire on the current tick
+			long ticks = Math.max(calculated, tick);
+			timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+			wheel[(int) (ticks & (WHEEL_SIZE - 1))].add(timeout);
+			activeTimeouts++;
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final long deadline;
+		private volatile Runnable task;
+		private volatile int state = WAITING;
+		private long remainingRounds;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevents the task from running and drops the reference to it right away, so a
+		 * cancelled timeout doesn't keep the task's captures alive until its deadline.
+		 *
+		 * @return false if the task has already run or was already cancelled
+		 */
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+				return false;
+			}
+			task = null;
+			return true;
+		}
+
+		boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+				return;
+			}
+			Runnable t = task;
+			task = null;
+			try {
+				t.run();
+			} catch (RuntimeException | Error e) {
+				Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts, only touched by the worker thread.
+	 */
+	private final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			activeTimeouts--;
+		}
+	}
+}
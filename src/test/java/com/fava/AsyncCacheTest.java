@@ -0,0 +1,156 @@
+package com.fava;
+
+import com.fava.promise.AsyncCache;
+import com.fava.promise.Promise;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncCacheTest {
+	@Test
+	public void testSingleFlight() throws InterruptedException {
+		AtomicInteger loads = new AtomicInteger(0);
+		CompletableFuture<String> gate = new CompletableFuture<>();
+		AsyncCache<Integer, String> cache = new AsyncCache<>(k -> {
+			loads.incrementAndGet();
+			return Promise.fromCompletionStage(gate).fmap(v -> v + k);
+		}, 100);
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Promise<String>> results = new ArrayList<>();
+		CountDownLatch requested = new CountDownLatch(64);
+		try {
+			for (int i = 0; i < 64; i++) {
+				pool.execute(() -> {
+					synchronized (results) {
+						results.add(cache.get(1));
+					}
+					requested.countDown();
+				});
+			}
+			requested.await();
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(Promise.State.PENDING, results.get(0).state());
+		// only one promise is shared by every caller
+		for (Promise<String> p : results) {
+			assertSame(results.get(0), p);
+		}
+		gate.complete("v");
+		assertEquals("v1", results.get(0).await());
+		assertEquals("v1", cache.get(1).await());
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testLoadingEntriesAreNotEvicted() {
+		AtomicInteger loads = new AtomicInteger(0);
+		CompletableFuture<String> gate = new CompletableFuture<>();
+		AsyncCache<Integer, String> cache = new AsyncCache<>(k -> {
+			loads.incrementAndGet();
+			return k == 0 ? Promise.fromCompletionStage(gate) : Promise.unit("v" + k);
+		}, 2);
+		Promise<String> loading = cache.get(0);
+		// keys used more often than the loading one, so that it is the one to go
+		for (int i = 1; i <= 20; i++) {
+			for (int j = 0; j < 4; j++) {
+				cache.get(i);
+			}
+			cache.cleanUp();
+		}
+		// still one load in flight for the key, shared by the next caller
+		assertSame(loading, cache.get(0));
+		assertEquals(21, loads.get());
+
+		gate.complete("v0");
+		cache.cleanUp();
+		assertEquals("v0", loading.await());
+		assertTrue(cache.size() <= 2);
+	}
+
+	@Test
+	public void testFailedEntriesAreRemoved() {
+		AtomicInteger loads = new AtomicInteger(0);
+		AsyncCache<String, Integer> cache = new AsyncCache<>(k -> loads.incrementAndGet() == 1
+				? Promise.failure(new IllegalStateException("down"))
+				: Promise.unit(k.length()), 10);
+		assertEquals("down", cache.get("abc").getException().getMessage());
+		assertNull(cache.getIfPresent("abc"));
+		assertEquals(Integer.valueOf(3), cache.get("abc").await());
+		assertEquals(Integer.valueOf(3), cache.get("abc").await());
+		assertEquals(2, loads.get());
+
+		Promise<Integer> pending = new AsyncCache<String, Integer>(k -> new Promise<>(), 10).get("x");
+		assertTrue(pending.cancel(true));
+	}
+
+	@Test
+	public void testSizeEvictionKeepsFrequentKeys() {
+		AsyncCache<Integer, Integer> cache = new AsyncCache<>(Promise::unit, 100);
+		// a small hot set, read many times
+		for (int round = 0; round < 20; round++) {
+			for (int k = 0; k < 50; k++) {
+				cache.get(k);
+			}
+			cache.cleanUp();
+		}
+		// a long scan of keys read once
+		for (int k = 1000; k < 11_000; k++) {
+			cache.get(k);
+		}
+		cache.cleanUp();
+		assertTrue(cache.size() <= 100);
+		int hot = 0;
+		for (int k = 0; k < 50; k++) {
+			if (cache.getIfPresent(k) != null) {
+				hot++;
+			}
+		}
+		assertTrue("hot keys kept: " + hot, hot >= 45);
+	}
+
+	@Test
+	public void testExpiryAndRefreshAhead() throws InterruptedException {
+		AtomicInteger version = new AtomicInteger(0);
+		AsyncCache<String, Integer> cache = new AsyncCache<>(k -> Promise.unit(version.incrementAndGet()), 10,
+				Duration.ofMillis(300), Duration.ofMillis(50));
+		assertEquals(Integer.valueOf(1), cache.get("k").await());
+		Thread.sleep(80);
+		// past the refresh time: the old value is served while the reload runs
+		assertEquals(Integer.valueOf(1), cache.get("k").await());
+		assertEquals(Integer.valueOf(2), cache.get("k").await());
+
+		AsyncCache<String, Integer> expiring = new AsyncCache<>(k -> Promise.unit(version.incrementAndGet()), 10,
+				Duration.ofMillis(50), null);
+		int first = expiring.get("k").await();
+		assertEquals(Integer.valueOf(first), expiring.get("k").await());
+		Thread.sleep(80);
+		assertNull(expiring.getIfPresent("k"));
+		assertEquals(Integer.valueOf(first + 1), expiring.get("k").await());
+	}
+
+	@Test
+	public void testExpiredEntriesAreSwept() throws InterruptedException {
+		AsyncCache<String, String> cache = new AsyncCache<>(Promise::unit, 10, Duration.ofMillis(50), null);
+		cache.get("a");
+		cache.get("b");
+		cache.get("c");
+		Thread.sleep(80);
+		// never read again, yet dropped once the policy catches up
+		cache.get("d");
+		cache.cleanUp();
+		assertEquals(1, cache.size());
+		assertNotNull(cache.getIfPresent("d"));
+	}
+}
@@ -0,0 +1,217 @@
+package com.fava;
+
+import com.fava.promise.EventLoop;
+import com.fava.promise.Promise;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+	@Test
+	public void testContinuationsStayOnTheLoop() throws Exception {
+		EventLoop loop = EventLoop.next();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		CompletableFuture<Integer> done = new CompletableFuture<>();
+		loop.execute(() -> {
+			// completed on a pool thread, yet every stage registered here runs on the loop
+			Promise.fulfillInAsync(() -> 20)
+					.fmap(x -> {
+						threads.add(Thread.currentThread());
+						return x + 1;
+					})
+					.then(x -> Promise.fulfillInAsync(() -> x * 2))
+					.fmap(x -> {
+						threads.add(Thread.currentThread());
+						return x;
+					})
+					.thenAccept(done::complete);
+		});
+		assertEquals(Integer.valueOf(42), done.get(5, TimeUnit.SECONDS));
+		assertEquals(1, threads.size());
+		assertTrue(threads.iterator().next().getName().startsWith("fava-loop-"));
+	}
+
+	@Test
+	public void testBoundPromiseCompletesOnItsLoop() throws Exception {
+		EventLoop loop = new EventLoop("test-loop");
+		try {
+			CompletableFuture<LoopPromise> created = new CompletableFuture<>();
+			loop.execute(() -> created.complete(new LoopPromise()));
+			LoopPromise promise = created.get(5, TimeUnit.SECONDS);
+
+			AtomicReference<Thread> listenerThread = new AtomicReference<>();
+			CountDownLatch fired = new CountDownLatch(1);
+			Promise<String> mapped = promise.fmap(v -> {
+				listenerThread.set(Thread.currentThread());
+				fired.countDown();
+				return v + "!";
+			});
+			promise.set("hi");
+			assertTrue(fired.await(5, TimeUnit.SECONDS));
+			assertEquals("hi!", mapped.await());
+			assertEquals("test-loop", listenerThread.get().getName());
+
+			// a long chain built and completed on the loop, on the confined path
+			CompletableFuture<Integer> sum = new CompletableFuture<>();
+			loop.execute(() -> {
+				LoopPromise source = new LoopPromise();
+				Promise<Integer> last = source.fmap(String::length);
+				for (int i = 0; i < 10_000; i++) {
+					last = last.fmap(x -> x + 1);
+				}
+				last.thenAccept(sum::complete);
+				source.set("abc");
+			});
+			assertEquals(Integer.valueOf(10_003), sum.get(5, TimeUnit.SECONDS));
+
+			// blocking the loop on its own promise would never end
+			CompletableFuture<Throwable> blocked = new CompletableFuture<>();
+			loop.execute(() -> {
+				try {
+					new LoopPromise().await();
+					blocked.complete(null);
+				} catch (IllegalStateException e) {
+					blocked.complete(e);
+				}
+			});
+			assertNotNull(blocked.get(5, TimeUnit.SECONDS));
+
+			// joining a task queued on the loop never runs it on the joining thread
+			CountDownLatch busy = new CountDownLatch(1);
+			loop.execute(() -> {
+				try {
+					busy.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			Promise<String> queued = Promise.fulfillInAsync(() -> Thread.currentThread().getName(), loop);
+			new Thread(busy::countDown).start();
+			assertEquals("test-loop", queued.join());
+		} finally {
+			loop.shutdown();
+		}
+		try {
+			loop.execute(() -> { });
+			fail("expected a rejection");
+		} catch (RejectedExecutionException expected) {
+			// shut down
+		}
+	}
+
+	@Test
+	public void testOffLoopCompletionIsDecidedAtOnce() throws Exception {
+		EventLoop loop = new EventLoop("decide-loop");
+		try {
+			CompletableFuture<LoopPromise> created = new CompletableFuture<>();
+			loop.execute(() -> created.complete(new LoopPromise()));
+			LoopPromise promise = created.get(5, TimeUnit.SECONDS);
+			Promise<Integer> derived = promise.fmap(String::length);
+
+			// a completion queued on the loop loses to a cancel that already returned true
+			CountDownLatch gate = new CountDownLatch(1);
+			loop.execute(() -> {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			loop.execute(() -> promise.set("late"));
+			assertTrue(derived.cancel(true));
+			assertFalse(promise.cancel(true));
+			gate.countDown();
+			CompletableFuture<Promise.State> state = new CompletableFuture<>();
+			loop.execute(() -> state.complete(promise.state()));
+			assertEquals(Promise.State.CANCELLED, state.get(5, TimeUnit.SECONDS));
+
+			// a listener on a promise that is already done runs inline, even from a loop
+			Promise<String> done = Promise.unit("x");
+			CompletableFuture<Boolean> inline = new CompletableFuture<>();
+			loop.execute(() -> {
+				AtomicReference<String> seen = new AtomicReference<>();
+				done.fmap(v -> {
+					seen.set(v);
+					return v;
+				});
+				inline.complete("x".equals(seen.get()));
+			});
+			assertTrue(inline.get(5, TimeUnit.SECONDS));
+		} finally {
+			loop.shutdown();
+		}
+	}
+
+	@Test
+	public void testBoundPromiseCompletesAfterShutdown() throws Exception {
+		EventLoop loop = new EventLoop("closing-loop");
+		CompletableFuture<List<LoopPromise>> created = new CompletableFuture<>();
+		loop.execute(() -> created.complete(List.of(new LoopPromise(), new LoopPromise())));
+		LoopPromise draining = created.get(5, TimeUnit.SECONDS).get(0);
+		LoopPromise exited = created.get(5, TimeUnit.SECONDS).get(1);
+		Promise<Integer> drained = draining.fmap(String::length);
+		Promise<Integer> late = exited.fmap(String::length);
+		loop.shutdown();
+
+		// completed while the loop may still be draining, then surely after its thread exited
+		draining.set("ab");
+		assertEquals(Integer.valueOf(2), drained.await(Duration.ofSeconds(5)));
+		Thread.sleep(100);
+		exited.set("abc");
+		assertEquals(Integer.valueOf(3), late.await(Duration.ofSeconds(5)));
+		assertEquals(Integer.valueOf(4), exited.fmap(v -> v.length() + 1).await(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	public void testTasksRunInOrderPerProducer() throws Exception {
+		EventLoop loop = new EventLoop("order-loop");
+		try {
+			int producers = 4;
+			int tasks = 20_000;
+			int[] last = new int[producers];
+			List<Integer> outOfOrder = new ArrayList<>();
+			CountDownLatch ran = new CountDownLatch(producers * tasks);
+			List<Thread> threads = new ArrayList<>();
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				threads.add(new Thread(() -> {
+					for (int i = 1; i <= tasks; i++) {
+						int seq = i;
+						loop.execute(() -> {
+							// only the loop thread touches these, no synchronization needed
+							if (last[producer] != seq - 1) {
+								outOfOrder.add(seq);
+							}
+							last[producer] = seq;
+							ran.countDown();
+						});
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			assertTrue(ran.await(10, TimeUnit.SECONDS));
+			CompletableFuture<List<Integer>> seen = new CompletableFuture<>();
+			loop.execute(() -> seen.complete(new ArrayList<>(outOfOrder)));
+			assertTrue(seen.get(5, TimeUnit.SECONDS).isEmpty());
+		} finally {
+			loop.shutdown();
+		}
+	}
+
+	private static class LoopPromise extends Promise<String> {
+		void set(String value) {
+			notifySuccess(value);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.fava;
+
+import com.fava.promise.DoublePromise;
+import com.fava.promise.IntPromise;
+import com.fava.promise.LongPromise;
+import com.fava.promise.Promise;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class PrimitivePromiseTest {
+	@Test
+	public void testConversions() {
+		SettableInt source = new SettableInt();
+		Promise<String> mapped = source.fmap(x -> x + 1)
+				.fmapToLong(x -> x * 1_000_000_000L)
+				.fmapToDouble(x -> x / 4.0)
+				.fmapToObj(d -> "v" + d);
+		source.set(1);
+		assertEquals("v5.0E8", mapped.await());
+
+		LongPromise length = Promise.unit("hello").fmapToLong(String::length);
+		assertEquals(5L, length.await());
+		assertEquals(Integer.valueOf(10), IntPromise.from(Promise.fulfillInAsync(() -> 5)).fmap(x -> x * 2).boxed().await());
+		assertEquals(0.5, DoublePromise.unit(1.0).fmap(x -> x / 2).await(), 0.0);
+		assertEquals(3, DoublePromise.unit(3.7).fmapToInt(x -> (int) x).await());
+	}
+
+	@Test
+	public void testListeners() {
+		List<Integer> seen = new ArrayList<>();
+		SettableInt source = new SettableInt();
+		source.addListener(seen::add, e -> fail());
+		source.addListener(new IntPromise.Listener() {
+			@Override
+			public void onSuccess(int value) {
+				seen.add(-value);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				fail();
+			}
+		});
+		source.set(7);
+		source.addListener(v -> seen.add(v * 10), e -> fail());
+		assertEquals(List.of(7, -7, 70), seen);
+	}
+
+	@Test
+	public void testFailuresAndCancellation() throws TimeoutException {
+		IntPromise divided = IntPromise.unit(1).fmap(x -> x / 0);
+		assertEquals(0L, divided.fmapToLong(x -> x).await());
+		assertTrue(divided.getException() instanceof ArithmeticException);
+		assertEquals(Promise.State.FAILED, divided.fmapToDouble(x -> x).state());
+
+		// cancelling the last stage cancels the generic promise it was mapped from
+		Promise<Integer> pending = new Promise<>();
+		Promise<String> last = IntPromise.from(pending).fmap(x -> x + 1).fmapToObj(Integer::toString);
+		assertTrue(last.cancel(true));
+		assertEquals(Promise.State.CANCELLED, pending.state());
+
+		SettableInt never = new SettableInt();
+		try {
+			never.await(Duration.ofMillis(20));
+			fail("expected a timeout");
+		} catch (TimeoutException expected) {
+			// still pending
+		}
+		IntPromise stage = never.fmap(x -> x);
+		never.cancel(false);
+		assertTrue(stage.getException() instanceof CancellationException);
+	}
+
+	@Test
+	public void testDeepChainIsStackSafe() {
+		SettableInt source = new SettableInt();
+		IntPromise last = source;
+		for (int i = 0; i < 100_000; i++) {
+			last = last.fmap(x -> x + 1);
+		}
+		source.set(0);
+		assertEquals(100_000, last.await());
+
+		Promise<Integer> root = new Promise<>();
+		last = IntPromise.from(root);
+		for (int i = 0; i < 100_000; i++) {
+			last = last.fmap(x -> x + 1);
+		}
+		assertTrue(last.cancel(true));
+		assertEquals(Promise.State.CANCELLED, root.state());
+	}
+
+	private static class SettableInt extends IntPromise {
+		void set(int value) {
+			notifySuccess(value);
+		}
+	}
+}
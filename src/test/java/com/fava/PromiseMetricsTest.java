@@ -0,0 +1,97 @@
+package com.fava;
+
+import com.fava.promise.Promise;
+import com.fava.promise.PromiseMetrics;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PromiseMetricsTest {
+	@Before
+	public void setUp() {
+		PromiseMetrics.reset();
+		PromiseMetrics.enable();
+	}
+
+	@After
+	public void tearDown() {
+		PromiseMetrics.disable();
+		PromiseMetrics.setSlowListenerThreshold(Duration.ofMillis(10));
+		PromiseMetrics.reset();
+	}
+
+	@Test
+	public void testSnapshot() {
+		PromiseMetrics.setSlowListenerThreshold(Duration.ofMillis(5));
+		for (int i = 0; i < 10; i++) {
+			Promise.fulfillInAsync(() -> {
+				Thread.sleep(20);
+				return 1;
+			}).await();
+		}
+		Promise<Integer> fanOut = new Promise<>();
+		for (int i = 0; i < 3; i++) {
+			fanOut.onSuccess(v -> {
+			});
+		}
+		fanOut.cancel(false);
+		Promise.unit(1).onSuccess(v -> sleep(10));
+
+		PromiseMetrics.Snapshot snapshot = PromiseMetrics.snapshot();
+		assertEquals(11, snapshot.created());
+		assertEquals(11, snapshot.completed());
+		assertEquals(0, snapshot.pending());
+		assertEquals(3, snapshot.maxListeners());
+		assertEquals(1, snapshot.slowListeners());
+		assertTrue(snapshot.latencyPercentile(90).toMillis() >= 15);
+		assertTrue(snapshot.latencyPercentile(0).compareTo(snapshot.latencyPercentile(100)) <= 0);
+		assertTrue(snapshot.poolSize() > 0);
+		assertEquals(0, snapshot.queueDepth());
+
+		PromiseMetrics.disable();
+		new Promise<Integer>().cancel(false);
+		assertEquals(11, PromiseMetrics.snapshot().created());
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		PromiseMetrics.setSlowListenerThreshold(Duration.ofMillis(5));
+		Path dump = Files.createTempFile("promise", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.fava.promise.PromiseCompleted");
+			recording.enable("com.fava.promise.SlowListener");
+			recording.start();
+			Promise.fulfillInAsync(() -> 42).fmap(v -> v + 1).await();
+			Promise.unit(1).onSuccess(v -> sleep(10));
+			recording.stop();
+			recording.dump(dump);
+		}
+		try {
+			List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+			assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("com.fava.promise.PromiseCompleted")
+					&& "SUCCEEDED".equals(e.getString("state"))));
+			assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("com.fava.promise.SlowListener")
+					&& e.getDuration("elapsed").toMillis() >= 5));
+		} finally {
+			Files.delete(dump);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.fava;
+
+import com.fava.promise.Promise;
+import com.fava.promise.PromiseStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PromiseStreamTest {
+	/**
+	 * An endless source of 0, 1, 2, ... that counts how many values were pulled from it.
+	 */
+	private static Iterable<Long> naturals(AtomicLong pulled) {
+		return () -> new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Long next() {
+				return pulled.getAndIncrement();
+			}
+		};
+	}
+
+	@Test
+	public void testMapFilterTakeFold() {
+		AtomicLong pulled = new AtomicLong(0);
+		Promise<Long> sum = PromiseStream.fromIterable(naturals(pulled))
+				.filter(n -> n % 2 == 0)
+				.map(n -> n * 10)
+				.take(1000)
+				.fold(0L, Long::sum);
+		assertEquals(Long.valueOf(10L * 999 * 1000), sum.await());
+		// take never asks for more than it needs, so the endless source stops right there
+		assertEquals(1999, pulled.get());
+	}
+
+	@Test
+	public void testMapAsyncKeepsOrderAndBoundsParallelism() {
+		AtomicInteger pending = new AtomicInteger(0);
+		AtomicInteger maxPending = new AtomicInteger(0);
+		Promise<List<Integer>> values = PromiseStream.fromIterable(range(500))
+				.mapAsync(8, i -> {
+					maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+					return Promise.fulfillInAsync(() -> {
+						Thread.sleep(i % 3);
+						pending.decrementAndGet();
+						return i * 2;
+					});
+				})
+				.fold(new ArrayList<>(), (list, i) -> {
+					list.add(i);
+					return list;
+				});
+		List<Integer> result = values.await();
+		assertEquals(500, result.size());
+		for (int i = 0; i < result.size(); i++) {
+			assertEquals(Integer.valueOf(i * 2), result.get(i));
+		}
+		assertTrue(maxPending.get() <= 8);
+
+		Promise<Integer> failed = PromiseStream.of(1, 2, 3)
+				.mapAsync(2, i -> i == 2 ? Promise.<Integer>failure(new IllegalStateException("bad")) : Promise.unit(i))
+				.fold(0, Integer::sum);
+		assertNull(failed.await());
+		assertEquals("bad", failed.getException().getMessage());
+	}
+
+	@Test
+	public void testFlowInterop() throws InterruptedException {
+		// a JDK publisher as the source of a stream
+		Promise<Integer> sum;
+		try (SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>()) {
+			sum = PromiseStream.fromPublisher(publisher).map(i -> i + 1).fold(0, Integer::sum);
+			for (int i = 0; i < 100; i++) {
+				publisher.submit(i);
+			}
+		}
+		assertEquals(Integer.valueOf(5050), sum.await());
+
+		// a plain subscriber pulling one value at a time from a stream
+		List<Integer> received = new ArrayList<>();
+		AtomicInteger completed = new AtomicInteger(0);
+		PromiseStream.fromIterable(range(10)).subscribe(new Flow.Subscriber<>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(Integer item) {
+				received.add(item);
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable.getMessage());
+			}
+
+			@Override
+			public void onComplete() {
+				completed.incrementAndGet();
+			}
+		});
+		assertEquals(range(10), received);
+		assertEquals(1, completed.get());
+	}
+
+	@Test
+	public void testBadRequestIsSignalledSerially() {
+		// a request(0) made from another thread while onNext runs must not overlap it
+		assertBadRequestIsSignalledSerially(PromiseStream.of(1, 2, 3));
+		assertBadRequestIsSignalledSerially(PromiseStream.of(1, 2, 3).mapAsync(2, Promise::unit));
+	}
+
+	private static void assertBadRequestIsSignalledSerially(PromiseStream<Integer> stream) {
+		AtomicInteger nexts = new AtomicInteger(0);
+		AtomicInteger overlaps = new AtomicInteger(0);
+		List<Throwable> errors = new ArrayList<>();
+		stream.subscribe(new Flow.Subscriber<>() {
+			private Flow.Subscription subscription;
+			private volatile boolean inNext;
+
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(Integer item) {
+				inNext = true;
+				nexts.incrementAndGet();
+				Thread other = new Thread(() -> subscription.request(0));
+				other.start();
+				try {
+					other.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				inNext = false;
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				if (inNext) {
+					overlaps.incrementAndGet();
+				}
+				errors.add(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				fail("expected an error");
+			}
+		});
+		assertEquals(1, nexts.get());
+		assertEquals(0, overlaps.get());
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0) instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void testCancelFold() {
+		AtomicLong pulled = new AtomicLong(0);
+		Promise<Long> endless = PromiseStream.fromIterable(naturals(pulled))
+				.mapAsync(4, n -> new Promise<Long>())
+				.fold(0L, Long::sum);
+		assertEquals(4, pulled.get());
+		assertTrue(endless.cancel(true));
+		assertEquals(Promise.State.CANCELLED, endless.state());
+	}
+
+	private static List<Integer> range(int n) {
+		List<Integer> list = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+}
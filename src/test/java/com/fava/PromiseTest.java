@@ -1,9 +1,19 @@
 package com.fava;
 
+import com.fava.Functions.IF1;
 import com.fava.data.Lists;
+import com.fava.data.Numbers;
 import com.fava.data.Strings;
+import com.fava.promise.Bulkhead;
+import com.fava.promise.CircuitBreaker;
+import com.fava.promise.Hedger;
 import com.fava.promise.Promise;
+import com.fava.promise.PromiseExecutors;
+import com.fava.promise.PromiseScope;
 import com.fava.promise.Promises;
+import com.fava.promise.RetryPolicy;
+import com.fava.promise.StripedExecutor;
+import com.fava.promise.Throttle;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -11,11 +21,25 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static com.fava.data.Lists.map;
@@ -57,6 +81,19 @@ public class PromiseTest {
 	/**
 	 * Tests functor law: fmap id = id
 	 */
+	@Test
+	public void testPromise_subclassAccessors() {
+		SettablePromise<Integer> promise = new SettablePromise<>();
+		Promise<Integer> first = promise.fmap(x -> x + 1);
+		promise.onSuccess(x -> { });
+		assertEquals(2, promise.waiting().size());
+		assertSame(first, promise.waiting().get(0));
+		promise.set(1);
+		assertEquals(0, promise.waiting().size());
+		assertEquals(Integer.valueOf(1), promise.settled());
+		assertNull(promise.failed());
+	}
+
 	@Test
 	public void testPromise_functorLaw1() {
 		Currying.F1<Promise<String>, Promise<String>> id = Promises.fmap(Identity::id);
@@ -107,6 +144,61 @@ public class PromiseTest {
 				.await());
 	}
 
+	/**
+	 * Races the completion of both inputs of a lifted function. The function must run exactly
+	 * once, and completing either input must never block waiting for the other.
+	 */
+	@Test
+	public void testPromise_liftAConcurrent() throws InterruptedException {
+		Currying.F2<Promise<Integer>, Promise<Integer>, Promise<Integer>> multiply = liftA(Numbers.multiply());
+		SettablePromise<Integer> onlyRight = new SettablePromise<>();
+		SettablePromise<Integer> right = new SettablePromise<>();
+		Promise<Integer> halfDone = multiply.apply(onlyRight, right);
+		right.set(1);
+		assertEquals(Promise.State.PENDING, halfDone.state());
+		onlyRight.set(2);
+		assertEquals(Integer.valueOf(2), halfDone.await());
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 20_000; i++) {
+				SettablePromise<Integer> a = new SettablePromise<>();
+				SettablePromise<Integer> b = new SettablePromise<>();
+				AtomicInteger combined = new AtomicInteger(0);
+				Promise<Integer> sum = liftA(new Currying.F2<Integer, Integer, Integer>() {
+					@Override
+					public Integer apply(Integer x, Integer y) {
+						combined.incrementAndGet();
+						return x + y;
+					}
+				}).apply(a, b);
+				int expected = i;
+				CountDownLatch go = new CountDownLatch(1);
+				pool.execute(() -> {
+					awaitQuietly(go);
+					a.set(expected);
+				});
+				pool.execute(() -> {
+					awaitQuietly(go);
+					b.set(1);
+				});
+				go.countDown();
+				assertEquals(Integer.valueOf(expected + 1), sum.await());
+				assertEquals(1, combined.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		Promise<String> abc = liftA(new Currying.F3<String, String, String, String>() {
+			@Override
+			public String apply(String x, String y, String z) {
+				return x + y + z;
+			}
+		}).apply(asyncGet(URL1), Promise.unit("-"), asyncGet(URL2));
+		assertEquals(PAGE1 + "-" + PAGE2, abc.await());
+	}
+
 	/**
 	 * This test case concatenates a list of web pages asynchronously fetched
 	 * from the Internet. It's to demonstrate lifting a function of type
@@ -146,6 +238,70 @@ public class PromiseTest {
 		assertEquals("Fava,Functional,Hello,I,in,is,Java,love,programming,world", result2);
 	}
 
+	@Test
+	public void testPromise_all() {
+		List<Promise<Integer>> promises = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			int value = i;
+			promises.add(i % 2 == 0 ? Promise.unit(i) : Promise.fulfillInAsync(() -> value));
+		}
+		List<Integer> values = Promises.all(promises).await();
+		assertEquals(1000, values.size());
+		for (int i = 0; i < values.size(); i++) {
+			assertEquals(Integer.valueOf(i), values.get(i));
+		}
+		assertEquals(0, Promises.all(new ArrayList<Promise<Integer>>()).await().size());
+
+		// without fail-fast the failure is only reported once everything settled
+		SettablePromise<Integer> slow = new SettablePromise<>();
+		Promise<Integer> failed = Promise.failure(new RuntimeException("boom"));
+		Promise<List<Integer>> settled = Promises.all(asList(slow, failed));
+		Promise<List<Integer>> fastFailed = Promises.all(asList(slow, failed), true);
+		assertEquals(Promise.State.FAILED, fastFailed.state());
+		assertEquals(Promise.State.PENDING, settled.state());
+		slow.set(1);
+		assertEquals(Promise.State.FAILED, settled.state());
+		settled.onFailure(e -> assertEquals("boom", e.getMessage()));
+	}
+
+	@Test
+	public void testPromise_raceAnyFirstN() {
+		SettablePromise<String> slow = new SettablePromise<>();
+		SettablePromise<String> fast = new SettablePromise<>();
+		Promise<String> winner = Promises.race(asList(slow, fast));
+		fast.set("fast");
+		assertEquals("fast", winner.await());
+		assertEquals(Promise.State.CANCELLED, slow.state());
+
+		Promise<String> failing = Promise.failure(new RuntimeException("replica down"));
+		SettablePromise<String> replica = new SettablePromise<>();
+		Promise<String> any = Promises.any(asList(failing, replica, asyncGet(URL1)));
+		assertEquals(PAGE1, any.await());
+		assertEquals(Promise.State.CANCELLED, replica.state());
+
+		Promise<String> none = Promises.any(asList(failing, Promise.<String>failure(new RuntimeException("cache miss"))));
+		assertNull(none.await());
+		none.onFailure(e -> assertEquals(2, e.getSuppressed().length));
+
+		List<Promise<Integer>> replicas = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			replicas.add(new SettablePromise<>());
+		}
+		Promise<List<Integer>> quorum = Promises.firstN(replicas, 3);
+		((SettablePromise<Integer>) replicas.get(4)).set(4);
+		((SettablePromise<Integer>) replicas.get(1)).set(1);
+		assertEquals(Promise.State.PENDING, quorum.state());
+		((SettablePromise<Integer>) replicas.get(2)).set(2);
+		assertEquals(asList(4, 1, 2), quorum.await());
+		assertEquals(Promise.State.CANCELLED, replicas.get(0).state());
+		assertEquals(Promise.State.CANCELLED, replicas.get(3).state());
+
+		// cancelling the combined promise cancels its inputs
+		SettablePromise<String> pending = new SettablePromise<>();
+		assertTrue(Promises.any(asList(pending)).cancel(true));
+		assertEquals(Promise.State.CANCELLED, pending.state());
+	}
+
 	/**
 	 * This test case will do 3 chained async HTTP GETs. The contents of the previous
 	 * page is the URL of the next page.
@@ -263,6 +419,1053 @@ public class PromiseTest {
 		System.out.println("Result size: " + result.size());
 	}
 
+	@Test
+	public void testPromise_fulfillInAsyncOnExecutor() {
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "custom-executor"));
+		try {
+			assertEquals("custom-executor",
+					Promise.fulfillInAsync(() -> Thread.currentThread().getName(), executor).await());
+
+			PromiseExecutors.setProvider(() -> executor);
+			assertEquals("custom-executor",
+					Promise.fulfillInAsync(() -> Thread.currentThread().getName()).await());
+		} finally {
+			PromiseExecutors.resetProvider();
+			executor.shutdown();
+		}
+
+		Promise<String> rejected = Promise.fulfillInAsync(() -> "never", executor);
+		assertEquals(Promise.State.FAILED, rejected.state());
+		assertNotEquals("custom-executor", Promise.fulfillInAsync(() -> Thread.currentThread().getName()).await());
+	}
+
+	@Test
+	public void testPromise_timeouts() throws TimeoutException {
+		Promise<String> stuck = new Promise<>();
+		try {
+			stuck.await(Duration.ofMillis(20));
+			fail("Should time out");
+		} catch (TimeoutException expected) {
+			assertEquals(Promise.State.PENDING, stuck.state());
+		}
+
+		AtomicInteger failures = new AtomicInteger(0);
+		Promise<String> timedOut = new Promise<String>().orTimeout(Duration.ofMillis(20));
+		timedOut.onFailure(e -> {
+			assertTrue(e instanceof TimeoutException);
+			failures.incrementAndGet();
+		});
+		assertNull(timedOut.await());
+		assertEquals(Promise.State.FAILED, timedOut.state());
+		assertEquals(1, failures.get());
+
+		assertEquals("fallback", new Promise<String>().completeOnTimeout("fallback", Duration.ofMillis(20)).await());
+		assertEquals(PAGE1, asyncGet(URL1).orTimeout(Duration.ofSeconds(10)).await(Duration.ofSeconds(10)));
+	}
+
+	/**
+	 * Many pending deadlines share the single timer thread.
+	 */
+	@Test
+	public void testPromise_manyTimeouts() throws TimeoutException {
+		List<Promise<Integer>> promises = new ArrayList<>();
+		for (int i = 0; i < 20_000; i++) {
+			promises.add(new Promise<Integer>().completeOnTimeout(i, Duration.ofMillis(10 + i % 200)));
+		}
+		for (int i = 0; i < promises.size(); i++) {
+			assertEquals(Integer.valueOf(i), promises.get(i).await(Duration.ofSeconds(5)));
+		}
+	}
+
+	/**
+	 * Cancelling the end of a chain interrupts the task at its head and skips the
+	 * stages that haven't run yet.
+	 */
+	@Test
+	public void testPromise_cancelPropagatesUpstream() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		AtomicInteger stagesRun = new AtomicInteger(0);
+		Promise<Integer> head = Promise.fulfillInAsync(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(10_000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+				throw e;
+			}
+			return 1;
+		});
+		Promise<Integer> tail = head
+				.fmap(v -> stagesRun.incrementAndGet())
+				.then(v -> Promise.unit(stagesRun.incrementAndGet()));
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(tail.cancel(true));
+		assertFalse(tail.cancel(true));
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(Promise.State.CANCELLED, tail.state());
+		assertEquals(Promise.State.CANCELLED, head.state());
+		assertNull(tail.await());
+		assertEquals(0, stagesRun.get());
+
+		// a task cancelled before it starts never runs
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			Promise.fulfillInAsync(() -> {
+				release.await();
+				return 0;
+			}, single);
+			AtomicInteger ran = new AtomicInteger(0);
+			Promise<Integer> queued = Promise.fulfillInAsync(ran::incrementAndGet, single);
+			Promise<Integer> joined = Promises.join(Promise.unit(queued));
+			assertTrue(joined.cancel(false));
+			release.countDown();
+			single.shutdown();
+			assertTrue(single.awaitTermination(5, TimeUnit.SECONDS));
+			assertEquals(Promise.State.CANCELLED, queued.state());
+			assertEquals(0, ran.get());
+		} finally {
+			single.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fused map stages still complete every intermediate promise, and a throwing function
+	 * fails its stage and everything after it.
+	 */
+	@Test
+	public void testPromise_fusedFmap() {
+		SettablePromise<Integer> head = new SettablePromise<>();
+		Promise<Integer> plusOne = head.fmap(v -> v + 1);
+		Promise<Integer> timesTwo = plusOne.fmap(v -> v * 2);
+		Promise<String> text = timesTwo.fmap(String::valueOf);
+		Promise<Integer> broken = plusOne.fmap(v -> v / 0);
+		Promise<Integer> afterBroken = broken.fmap(v -> v + 1);
+		head.set(1);
+		assertEquals(Integer.valueOf(2), plusOne.await());
+		assertEquals(Integer.valueOf(4), timesTwo.await());
+		assertEquals("4", text.await());
+		assertEquals(Promise.State.FAILED, broken.state());
+		assertEquals(Promise.State.FAILED, afterBroken.state());
+	}
+
+	/**
+	 * Completing the head of a very long chain must not overflow the stack.
+	 */
+	@Test
+	public void testPromise_deepChainIsStackSafe() {
+		SettablePromise<Integer> head = new SettablePromise<>();
+		Promise<Integer> tail = head;
+		for (int i = 0; i < 100_000; i++) {
+			tail = i % 2 == 0 ? tail.then(v -> Promise.unit(v + 1)) : tail.fmap(v -> v + 1);
+		}
+		head.set(0);
+		assertEquals(Integer.valueOf(100_000), tail.await());
+
+		Promise<Integer> built = Promise.unit(0);
+		for (int i = 0; i < 100_000; i++) {
+			built = built.then(v -> Promise.fulfillInAsync(() -> v + 1, Runnable::run));
+		}
+		assertEquals(Integer.valueOf(100_000), built.await());
+	}
+
+	/**
+	 * Failing tasks return their permit, and a lazy source is only pulled as permits free up.
+	 */
+	@Test
+	public void testPromise_throttle() {
+		Throttle throttle = new Throttle(4);
+		AtomicInteger running = new AtomicInteger(0);
+		AtomicInteger maxRunning = new AtomicInteger(0);
+		List<Promise<Integer>> promises = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			int value = i;
+			promises.add(throttle.submit(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(1);
+					if (value % 3 == 0) {
+						throw new IllegalStateException("failed " + value);
+					}
+					return value;
+				} finally {
+					running.decrementAndGet();
+				}
+			}));
+		}
+		for (int i = 0; i < promises.size(); i++) {
+			assertEquals(i % 3 == 0 ? null : Integer.valueOf(i), promises.get(i).await());
+		}
+		assertTrue(maxRunning.get() <= 4);
+		// a permit is returned right after its promise completes
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (throttle.inFlight() > 0 && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+		assertEquals(0, throttle.inFlight());
+		assertEquals(0, throttle.queued());
+
+		AtomicInteger pulled = new AtomicInteger(0);
+		AtomicInteger finished = new AtomicInteger(0);
+		Iterator<Callable<Integer>> unbounded = new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return pulled.get() < 1000;
+			}
+
+			@Override
+			public Callable<Integer> next() {
+				int pulledBefore = pulled.getAndIncrement();
+				assertTrue(pulledBefore - finished.get() <= 4);
+				return finished::incrementAndGet;
+			}
+		};
+		AtomicInteger seen = new AtomicInteger(0);
+		Promises.spawnEach(() -> unbounded, 4, p -> seen.incrementAndGet()).await();
+		assertEquals(1000, finished.get());
+		assertEquals(1000, seen.get());
+
+		// a source that throws fails the feeder instead of leaving it pending
+		Iterator<Callable<Integer>> broken = new Iterator<>() {
+			private int pulled;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Callable<Integer> next() {
+				if (++pulled > 10) {
+					throw new IllegalStateException("source broke");
+				}
+				return () -> 1;
+			}
+		};
+		Promise<Void> fed = throttle.forEach(broken, p -> { });
+		assertNull(fed.await());
+		assertEquals("source broke", fed.getException().getMessage());
+
+		// a null task fails the feeder rather than ending the source early
+		List<Callable<Integer>> withNull = asList(() -> 1, null, () -> 3);
+		Promise<Void> nulls = throttle.forEach(withNull.iterator(), p -> { });
+		assertNull(nulls.await());
+		assertTrue(nulls.getException() instanceof NullPointerException);
+
+		// an executor running tasks on the caller must not nest a start per queued task
+		AtomicReference<Runnable> held = new AtomicReference<>();
+		Throttle inline = new Throttle(1, r -> {
+			if (!held.compareAndSet(null, r)) {
+				r.run();
+			}
+		});
+		AtomicInteger ran = new AtomicInteger(0);
+		Promise<Integer> last = null;
+		for (int i = 0; i < 100_000; i++) {
+			last = inline.submit(ran::incrementAndGet);
+		}
+		held.get().run();
+		assertEquals(Integer.valueOf(100_000), last.await());
+		assertEquals(0, inline.queued());
+	}
+
+	/**
+	 * Listeners registered concurrently with completion must each run exactly once,
+	 * no matter which side of the completion they land on.
+	 */
+	@Test
+	public void testPromise_concurrentListeners() throws InterruptedException {
+		int workers = 8;
+		int perWorker = 200;
+		for (int round = 0; round < 100; round++) {
+			int expected = round;
+			SettablePromise<Integer> promise = new SettablePromise<>();
+			AtomicInteger calls = new AtomicInteger(0);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < workers; i++) {
+				threads.add(new Thread(() -> {
+					awaitQuietly(start);
+					for (int j = 0; j < perWorker; j++) {
+						promise.onSuccess(v -> calls.incrementAndGet());
+					}
+				}));
+			}
+			threads.add(new Thread(() -> {
+				awaitQuietly(start);
+				promise.set(expected);
+			}));
+			threads.forEach(Thread::start);
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertEquals(Integer.valueOf(expected), promise.await());
+			assertEquals(workers * perWorker, calls.get());
+		}
+	}
+
+	/**
+	 * A listener that throws must not keep threads parked in await on the completed promise.
+	 */
+	@Test
+	public void testPromise_throwingListenerWakesAwaiters() throws InterruptedException {
+		SettablePromise<Integer> promise = new SettablePromise<>();
+		promise.onSuccess(v -> {
+			throw new IllegalStateException("listener failed");
+		});
+		AtomicInteger seen = new AtomicInteger(0);
+		Thread awaiter = new Thread(() -> seen.set(promise.await()));
+		awaiter.start();
+		while (awaiter.getState() != Thread.State.WAITING) {
+			Thread.onSpinWait();
+		}
+		try {
+			promise.set(42);
+		} catch (IllegalStateException expected) {
+			// rethrown by the trampoline once every listener has run
+		}
+		awaiter.join(5000);
+		assertFalse(awaiter.isAlive());
+		assertEquals(42, seen.get());
+	}
+
+	@Test
+	public void testPromise_completionStage() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Promise<Integer> two = Promise.unit(2);
+			assertEquals(Integer.valueOf(6), two.thenApply(v -> v * 3).await());
+			assertEquals(Integer.valueOf(7), two.thenCombine(CompletableFuture.supplyAsync(() -> 5), Integer::sum).await());
+			assertEquals(Integer.valueOf(4), two.thenCompose(v -> CompletableFuture.completedFuture(v * v)).await());
+			assertEquals(Integer.valueOf(2), new Promise<Integer>().applyToEither(two, v -> v).await());
+
+			// the async variants run on the given executor
+			String thread = two.thenApplyAsync(v -> Thread.currentThread().getName(), executor).await();
+			assertNotEquals(Thread.currentThread().getName(), thread);
+
+			// failures reach handlers unwrapped
+			IllegalStateException boom = new IllegalStateException("boom");
+			Promise<Integer> failed = Promise.failure(boom);
+			assertSame(boom, failed.thenApply(v -> v + 1).getException());
+			assertEquals(Integer.valueOf(-1), failed.exceptionally(e -> e == boom ? -1 : 0).await());
+			assertEquals("boom", failed.handle((v, e) -> e.getMessage()).await());
+			AtomicInteger seen = new AtomicInteger(0);
+			assertSame(boom, failed.whenComplete((v, e) -> seen.incrementAndGet()).getException());
+			assertEquals(1, seen.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPromise_completableFutureBridge() throws Exception {
+		// promise -> future, outcomes and cancellation both ways
+		SettablePromise<String> promise = new SettablePromise<>();
+		CompletableFuture<String> future = promise.toCompletableFuture();
+		assertFalse(future.isDone());
+		promise.set("done");
+		assertEquals("done", future.get());
+		assertTrue(Promise.<String>failure(new IllegalStateException()).toCompletableFuture().isCompletedExceptionally());
+
+		Promise<String> pending = new Promise<>();
+		assertTrue(pending.toCompletableFuture().cancel(true));
+		assertEquals(Promise.State.CANCELLED, pending.state());
+		Promise<String> cancelled = new Promise<>();
+		CompletableFuture<String> cancelledFuture = cancelled.toCompletableFuture();
+		cancelled.cancel(true);
+		assertTrue(cancelledFuture.isCancelled());
+
+		// future -> promise
+		CompletableFuture<String> source = new CompletableFuture<>();
+		Promise<String> fromSource = Promise.fromCompletionStage(source);
+		source.complete("value");
+		assertEquals("value", fromSource.await());
+		assertSame(promise, Promise.fromCompletionStage(promise));
+
+		IllegalStateException boom = new IllegalStateException("boom");
+		Promise<Object> failed = Promise.fromCompletionStage(CompletableFuture.supplyAsync(() -> {
+			throw boom;
+		}));
+		failed.await();
+		assertSame(boom, failed.getException());
+
+		CompletableFuture<String> running = new CompletableFuture<>();
+		assertTrue(Promise.fromCompletionStage(running).fmap(String::length).cancel(true));
+		assertTrue(running.isCancelled());
+	}
+
+	@Test
+	public void testPromise_dispatchPolicy() {
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "dispatch-test"));
+		try {
+			String caller = Thread.currentThread().getName();
+			Promise<Integer> one = Promise.unit(1);
+			assertEquals("dispatch-test", one.fmapAsync(v -> Thread.currentThread().getName(), executor).await());
+			assertEquals("dispatch-test", one.thenAsync(v -> Promise.unit(Thread.currentThread().getName()), executor).await());
+			Promise<Integer> failed = Promise.<Integer>failure(new IllegalStateException("bad")).fmapAsync(v -> v, executor);
+			assertNull(failed.await());
+			assertEquals("bad", failed.getException().getMessage());
+
+			// listeners registered before completion run where the policy says
+			SettablePromise<Integer> source = new SettablePromise<>();
+			Promise<String> inline = source.dispatchOn(Promise.Dispatch.INLINE, null).fmap(v -> Thread.currentThread().getName());
+			Promise<String> handOff = source.dispatchOn(Promise.Dispatch.EXECUTOR, executor).fmap(v -> Thread.currentThread().getName());
+			Promise<String> shallow = source.dispatchOn(Promise.Dispatch.INLINE_IF_SHALLOW, executor).fmap(v -> Thread.currentThread().getName());
+			source.set(1);
+			assertEquals(caller, inline.await());
+			assertEquals("dispatch-test", handOff.await());
+			assertEquals(caller, shallow.await());
+
+			// a listener deep into a cascade of other listeners makes the next shallow stage hand off
+			SettablePromise<Integer> deepSource = new SettablePromise<>();
+			Promise<String> handedOff = deepSource.dispatchOn(Promise.Dispatch.INLINE_IF_SHALLOW, executor)
+					.fmap(v -> Thread.currentThread().getName());
+			SettablePromise<Integer> trigger = new SettablePromise<>();
+			trigger.onSuccess(v -> {
+				for (int i = 0; i < 100; i++) {
+					Promise.unit(i).onSuccess(x -> {
+					});
+				}
+				deepSource.set(v);
+			});
+			trigger.set(1);
+			assertEquals("dispatch-test", handedOff.await());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPromise_batcher() {
+		List<List<Integer>> batches = new ArrayList<>();
+		IF1<Integer, Promise<String>> load = Promises.batcher(keys -> {
+			synchronized (batches) {
+				batches.add(keys);
+			}
+			return keys.stream().filter(k -> k >= 0).collect(Collectors.toMap(k -> k, k -> "v" + k));
+		}, 10, Duration.ofMillis(20));
+
+		// duplicates within a window share a promise and the batch gets each key once
+		Promise<String> first = load.apply(1);
+		assertSame(first, load.apply(1));
+		Promise<String> second = load.apply(2);
+		assertEquals("v1", first.await());
+		assertEquals("v2", second.await());
+		assertEquals(asList(asList(1, 2)), batches);
+
+		// a full batch goes out right away, the rest waits for the window
+		batches.clear();
+		List<Promise<String>> results = new ArrayList<>();
+		for (int k = 0; k < 25; k++) {
+			results.add(load.apply(k));
+		}
+		for (int k = 0; k < 25; k++) {
+			assertEquals("v" + k, results.get(k).await());
+		}
+		assertEquals(asList(10, 10, 5), batches.stream().map(List::size).collect(Collectors.toList()));
+
+		Promise<String> missing = load.apply(-1);
+		assertNull(missing.await());
+		assertTrue(missing.getException() instanceof NoSuchElementException);
+	}
+
+	@Test
+	public void testPromise_retry() {
+		RetryPolicy policy = RetryPolicy.exponential(Duration.ofMillis(5), Duration.ofMillis(40)).withMaxAttempts(4);
+
+		AtomicInteger calls = new AtomicInteger(0);
+		Promise<Integer> flaky = Promises.retry(() -> {
+			if (calls.incrementAndGet() < 3) {
+				throw new IllegalStateException("transient");
+			}
+			return calls.get();
+		}, policy);
+		assertEquals(Integer.valueOf(3), flaky.await());
+
+		AtomicInteger exhausted = new AtomicInteger(0);
+		Promise<Integer> failing = Promises.retry(() -> {
+			throw new IllegalStateException("attempt " + exhausted.incrementAndGet());
+		}, policy);
+		assertNull(failing.await());
+		assertEquals("attempt 4", failing.getException().getMessage());
+
+		AtomicInteger fatal = new AtomicInteger(0);
+		Promise<Integer> notRetried = Promises.retry(() -> {
+			fatal.incrementAndGet();
+			throw new IllegalArgumentException("bad input");
+		}, policy.retryOn(e -> !(e instanceof IllegalArgumentException)));
+		assertNull(notRetried.await());
+		assertEquals(1, fatal.get());
+
+		// no retry is scheduled past the deadline, and a slow attempt is cut off by it
+		long start = System.nanoTime();
+		Promise<Integer> late = Promises.retry(() -> {
+			throw new IllegalStateException("down");
+		}, RetryPolicy.fixed(Duration.ofMillis(500)).withMaxAttempts(100).withDeadline(Duration.ofMillis(200)));
+		assertNull(late.await());
+		assertEquals("down", late.getException().getMessage());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+		Promise<Integer> slow = Promises.retry(() -> {
+			Thread.sleep(5000);
+			return 1;
+		}, policy.withDeadline(Duration.ofMillis(50)));
+		assertNull(slow.await());
+		assertTrue(slow.getException() instanceof TimeoutException);
+
+		// waiting retries hold no thread: a thousand of them on a two-thread pool
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			List<Promise<Integer>> retries = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				AtomicInteger attempts = new AtomicInteger(0);
+				retries.add(Promises.retry(() -> {
+					if (attempts.incrementAndGet() < 3) {
+						throw new IllegalStateException("transient");
+					}
+					return 1;
+				}, RetryPolicy.fixed(Duration.ofMillis(20)), pool));
+			}
+			assertEquals(1000, Promises.all(retries).await().stream().mapToInt(Integer::intValue).sum());
+		} finally {
+			pool.shutdown();
+		}
+
+		AtomicInteger cancelledCalls = new AtomicInteger(0);
+		Promise<Integer> cancelled = Promises.retry(() -> {
+			cancelledCalls.incrementAndGet();
+			throw new IllegalStateException("down");
+		}, RetryPolicy.fixed(Duration.ofMillis(50)).withMaxAttempts(10));
+		while (cancelledCalls.get() == 0) {
+			Thread.onSpinWait();
+		}
+		assertTrue(cancelled.cancel(true));
+		int callsAtCancel = cancelledCalls.get();
+		try {
+			Thread.sleep(120);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertEquals(callsAtCancel, cancelledCalls.get());
+	}
+
+	@Test
+	public void testPromise_scope() {
+		// a failure cancels and interrupts the siblings, and join waits until they have exited
+		AtomicInteger interrupted = new AtomicInteger(0);
+		CountDownLatch started = new CountDownLatch(2);
+		Promise<Object> failed;
+		try (PromiseScope<Object> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_FAILURE)) {
+			Callable<Object> sleeper = () -> {
+				started.countDown();
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException e) {
+					interrupted.incrementAndGet();
+					throw e;
+				}
+				return "late";
+			};
+			Promise<Object> slow1 = scope.fork(sleeper);
+			Promise<Object> slow2 = scope.fork(sleeper);
+			awaitQuietly(started);
+			scope.fork(() -> {
+				throw new IllegalStateException("boom");
+			});
+			failed = scope.join();
+			assertNull(failed.await());
+			assertEquals("boom", failed.getException().getMessage());
+			assertTrue(isCancelled(slow1) && isCancelled(slow2));
+			assertEquals(2, interrupted.get());
+			assertTrue(isCancelled(scope.fork(() -> "too late")));
+		}
+
+		// the first success wins and the slower ones are cancelled
+		try (PromiseScope<String> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_SUCCESS)) {
+			Promise<String> slow = scope.fork(() -> {
+				Thread.sleep(5000);
+				return "slow";
+			});
+			scope.fork(() -> {
+				throw new IllegalStateException("broken replica");
+			});
+			scope.fork(() -> "fast");
+			assertEquals("fast", scope.join().await());
+			assertTrue(isCancelled(slow));
+		}
+		try (PromiseScope<String> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_SUCCESS)) {
+			scope.fork(() -> {
+				throw new IllegalStateException("all down");
+			});
+			Promise<String> none = scope.join();
+			assertNull(none.await());
+			assertEquals("all down", none.getException().getMessage());
+		}
+
+		// closing without joining still doesn't leave tasks running behind
+		AtomicInteger running = new AtomicInteger(0);
+		CountDownLatch forked = new CountDownLatch(1);
+		try (PromiseScope<Integer> scope = new PromiseScope<>(PromiseScope.Policy.NONE)) {
+			scope.fork(() -> {
+				running.incrementAndGet();
+				forked.countDown();
+				try {
+					Thread.sleep(5000);
+				} finally {
+					running.decrementAndGet();
+				}
+				return 1;
+			});
+			awaitQuietly(forked);
+		}
+		assertEquals(0, running.get());
+
+		// joining a thousand children holds no thread per child
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try (PromiseScope<Integer> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_FAILURE, pool)) {
+			AtomicInteger sum = new AtomicInteger(0);
+			for (int i = 0; i < 1000; i++) {
+				scope.fork(() -> sum.incrementAndGet());
+			}
+			assertNull(scope.join().await());
+			assertEquals(1000, sum.get());
+		} finally {
+			pool.shutdown();
+		}
+
+		// a task failing inline while listeners drain still fails the scope
+		AtomicReference<Promise<Integer>> joined = new AtomicReference<>();
+		SettablePromise<Integer> trigger = new SettablePromise<>();
+		try (PromiseScope<Integer> scope = new PromiseScope<>(PromiseScope.Policy.SHUTDOWN_ON_FAILURE, Runnable::run)) {
+			trigger.onSuccess(v -> {
+				scope.fork(() -> {
+					throw new IllegalStateException("inline");
+				});
+				joined.set(scope.join());
+			});
+			trigger.set(1);
+		}
+		assertNull(joined.get().await());
+		assertEquals("inline", joined.get().getException().getMessage());
+	}
+
+	@Test
+	public void testPromise_awaitAndJoin() throws Exception {
+		// a worker awaiting a task queued behind it on a one-thread pool gets a compensating thread
+		ForkJoinPool fjp = new ForkJoinPool(1);
+		try {
+			Promise<Integer> outer = Promise.fulfillInAsync(() -> {
+				Promise<Integer> inner = Promise.fulfillInAsync(() -> 42, fjp);
+				return inner.await(Duration.ofSeconds(5));
+			}, fjp);
+			assertEquals(Integer.valueOf(42), outer.await(Duration.ofSeconds(10)));
+		} finally {
+			fjp.shutdown();
+		}
+
+		// a waiter that times out leaves the others registered
+		Promise<String> pending = new SettablePromise<>();
+		Promise<String> waited = Promise.fulfillInAsync(pending::await, PromiseExecutors.current());
+		try {
+			pending.await(Duration.ofMillis(20));
+			fail("expected a timeout");
+		} catch (TimeoutException expected) {
+			// still pending
+		}
+		((SettablePromise<String>) pending).set("done");
+		assertEquals("done", waited.await(Duration.ofSeconds(5)));
+
+		// waiting doesn't swallow an interrupt
+		Thread.currentThread().interrupt();
+		SettablePromise<String> later = new SettablePromise<>();
+		new Thread(() -> {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			later.set("later");
+		}).start();
+		assertEquals("later", later.await());
+		assertTrue(Thread.interrupted());
+
+		// join runs a task that the busy executor hasn't started, and the executor then skips it
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		CountDownLatch blocker = new CountDownLatch(1);
+		try {
+			single.execute(() -> awaitQuietly(blocker));
+			AtomicInteger runs = new AtomicInteger(0);
+			Thread caller = Thread.currentThread();
+			Promise<Boolean> task = Promise.fulfillInAsync(() -> {
+				runs.incrementAndGet();
+				return Thread.currentThread() == caller;
+			}, single);
+			assertTrue(task.fmap(inline -> inline).join());
+			blocker.countDown();
+			single.submit(() -> { }).get();
+			assertEquals(1, runs.get());
+		} finally {
+			blocker.countDown();
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void testPromise_traverse() {
+		// values come back in input order while at most 3 items are in flight
+		AtomicInteger inFlight = new AtomicInteger(0);
+		AtomicInteger maxInFlight = new AtomicInteger(0);
+		List<Integer> input = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			input.add(i);
+		}
+		Promise<List<String>> mapped = Promises.traverse(input, i -> Promise.fulfillInAsync(() -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			Thread.sleep((i * 7) % 5);
+			inFlight.decrementAndGet();
+			return "#" + i;
+		}), 3);
+		assertEquals(map(i -> "#" + i, input), mapped.await());
+		assertTrue(maxInFlight.get() <= 3);
+
+		// synchronous promises don't grow the stack
+		List<Integer> many = new ArrayList<>();
+		for (int i = 0; i < 100_000; i++) {
+			many.add(i);
+		}
+		assertEquals(100_000, Promises.traverse(many, Promise::unit, 4).await().size());
+		assertTrue(Promises.traverse(new ArrayList<Integer>(), Promise::unit, 4).await().isEmpty());
+
+		// the first failure stops mapping
+		AtomicInteger started = new AtomicInteger(0);
+		Promise<List<Integer>> failed = Promises.traverse(input, i -> {
+			started.incrementAndGet();
+			if (i == 5) {
+				return Promise.fulfillInAsync(() -> {
+					throw new IllegalStateException("item 5");
+				});
+			}
+			return Promise.fulfillInAsync(() -> {
+				Thread.sleep(2);
+				return i;
+			});
+		}, 2);
+		assertNull(failed.await());
+		assertEquals("item 5", failed.getException().getMessage());
+		assertTrue(started.get() < input.size());
+
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			int n = i;
+			tasks.add(() -> n * n);
+		}
+		assertEquals(asList(0, 1, 4, 9, 16, 25, 36, 49, 64, 81), Promises.sequence(tasks, 4).await());
+	}
+
+	@Test
+	public void testPromise_keyedExecution() throws Exception {
+		// tasks of one key run in submission order and never overlap
+		int keys = 8;
+		List<List<Integer>> seen = new ArrayList<>();
+		AtomicInteger[] running = new AtomicInteger[keys];
+		AtomicInteger overlaps = new AtomicInteger(0);
+		for (int k = 0; k < keys; k++) {
+			seen.add(new ArrayList<>());
+			running[k] = new AtomicInteger(0);
+		}
+		List<Promise<Integer>> all = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			int key = i % keys;
+			int seq = i;
+			all.add(Promises.fulfillInAsync("entity-" + key, () -> {
+				if (running[key].incrementAndGet() != 1) {
+					overlaps.incrementAndGet();
+				}
+				seen.get(key).add(seq);
+				running[key].decrementAndGet();
+				return seq;
+			}));
+		}
+		Promises.all(all).await();
+		assertEquals(0, overlaps.get());
+		for (List<Integer> perKey : seen) {
+			assertEquals(250, perKey.size());
+			for (int j = 1; j < perKey.size(); j++) {
+				assertTrue(perKey.get(j - 1) < perKey.get(j));
+			}
+		}
+
+		// different lanes run in parallel, and a blocked lane shows its backlog
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			StripedExecutor striped = new StripedExecutor(4, pool);
+			String a = "a";
+			String b = "b";
+			while (striped.laneOf(b) == striped.laneOf(a)) {
+				b += "b";
+			}
+			CountDownLatch bRan = new CountDownLatch(1);
+			Promise<Boolean> waitsForB = striped.submit(a, () -> bRan.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 3; i++) {
+				striped.submit(a, () -> true);
+			}
+			assertEquals(4, striped.queueDepth(striped.laneOf(a)));
+			striped.submit(b, () -> {
+				bRan.countDown();
+				return true;
+			});
+			assertTrue(waitsForB.await());
+			Promise<Boolean> last = striped.submit(a, () -> true);
+			assertTrue(last.await());
+			while (striped.queueDepth(striped.laneOf(a)) != 0) {
+				Thread.onSpinWait();
+			}
+
+			// joining a queued task waits for its turn instead of running it out of order
+			List<String> order = Collections.synchronizedList(new ArrayList<>());
+			CountDownLatch release = new CountDownLatch(1);
+			striped.submit(a, () -> {
+				release.await();
+				order.add("first");
+				return null;
+			});
+			Promise<String> second = striped.submit(a, () -> {
+				order.add("second");
+				return Thread.currentThread().getName();
+			});
+			Thread releaser = new Thread(() -> {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				release.countDown();
+			});
+			releaser.start();
+			assertNotEquals(Thread.currentThread().getName(), second.join());
+			assertEquals(List.of("first", "second"), order);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testPromise_hedge() {
+		// a slow first attempt is overtaken by a duplicate, then cancelled
+		AtomicInteger calls = new AtomicInteger(0);
+		AtomicInteger interrupted = new AtomicInteger(0);
+		long start = System.nanoTime();
+		Promise<Integer> hedged = Promises.hedgeWithFixedDelay(() -> {
+			int call = calls.incrementAndGet();
+			if (call == 1) {
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException e) {
+					interrupted.incrementAndGet();
+					throw e;
+				}
+			}
+			return call;
+		}, Duration.ofMillis(30), 2);
+		assertEquals(Integer.valueOf(2), hedged.await());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		while (interrupted.get() == 0) {
+			Thread.onSpinWait();
+		}
+
+		// every attempt fails: the first failure wins, the others are suppressed
+		AtomicInteger failing = new AtomicInteger(0);
+		Promise<Integer> failed = Promises.hedgeWithFixedDelay(() -> {
+			throw new IllegalStateException("attempt " + failing.incrementAndGet());
+		}, Duration.ofMillis(30), 2);
+		assertNull(failed.await());
+		assertEquals(3, failing.get());
+		assertEquals(2, failed.getException().getSuppressed().length);
+
+		// a task that throws CancellationException itself fails like any other
+		AtomicInteger refused = new AtomicInteger(0);
+		Promise<Integer> cancelling = Promises.hedgeWithFixedDelay(() -> {
+			refused.incrementAndGet();
+			throw new CancellationException("refused");
+		}, Duration.ofMillis(30), 2);
+		assertNull(cancelling.await());
+		assertEquals(3, refused.get());
+		assertTrue(cancelling.getException() instanceof CancellationException);
+
+		// once a hedger knows its backend is fast, it no longer waits for the initial delay
+		Hedger hedger = new Hedger(Duration.ofSeconds(1), 1);
+		Hedger other = new Hedger(Duration.ofSeconds(1), 1);
+		for (int i = 0; i < 64; i++) {
+			// the slowest calls may be overtaken by their duplicate
+			assertNotNull(hedger.hedge(backend(new AtomicInteger(0), 0)).await());
+		}
+		assertTrue(hedger.delay().compareTo(Duration.ofMillis(500)) < 0);
+		assertEquals(Duration.ofSeconds(1), other.delay());
+		start = System.nanoTime();
+		assertEquals(Integer.valueOf(2), hedger.hedge(backend(new AtomicInteger(0), 5000)).await());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+
+		// failed attempts count towards the p95 too
+		Hedger down = new Hedger(Duration.ofSeconds(1), 0);
+		for (int i = 0; i < 64; i++) {
+			down.hedge(() -> {
+				throw new IllegalStateException("down");
+			}).await();
+		}
+		assertTrue(down.delay().compareTo(Duration.ofMillis(500)) < 0);
+	}
+
+	@Test
+	public void testPromise_bulkhead() {
+		Bulkhead bulkhead = new Bulkhead(2, 1);
+		CountDownLatch gate = new CountDownLatch(1);
+		AtomicInteger ran = new AtomicInteger(0);
+		Callable<Integer> blocked = () -> {
+			gate.await();
+			return ran.incrementAndGet();
+		};
+		Promise<Integer> first = bulkhead.submit(blocked);
+		Promise<Integer> second = bulkhead.submit(blocked);
+		Promise<Integer> queued = bulkhead.submit(blocked);
+		assertEquals(2, bulkhead.inFlight());
+		assertEquals(1, bulkhead.waiting());
+
+		// the queue is full, the next task fails without running
+		Promise<Integer> rejected = bulkhead.submit(blocked);
+		assertTrue(rejected.getException() instanceof RejectedExecutionException);
+
+		// a cancelled task gives its queue slot back
+		assertTrue(queued.cancel(true));
+		assertEquals(0, bulkhead.waiting());
+		Promise<Integer> replacement = bulkhead.submit(blocked);
+		assertEquals(1, bulkhead.waiting());
+
+		gate.countDown();
+		assertNotNull(first.await());
+		assertNotNull(second.await());
+		assertNotNull(replacement.await());
+		assertEquals(3, ran.get());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (bulkhead.inFlight() > 0 && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+		assertEquals(0, bulkhead.inFlight());
+		assertEquals(0, bulkhead.waiting());
+
+		// an executor running tasks on the caller must not nest a start per queued task
+		AtomicReference<Runnable> held = new AtomicReference<>();
+		Bulkhead inline = new Bulkhead(1, 100_000, r -> {
+			if (!held.compareAndSet(null, r)) {
+				r.run();
+			}
+		});
+		AtomicInteger calls = new AtomicInteger(0);
+		Promise<Integer> last = null;
+		for (int i = 0; i < 100_000; i++) {
+			last = inline.submit(calls::incrementAndGet);
+		}
+		held.get().run();
+		assertEquals(Integer.valueOf(100_000), last.await());
+		assertEquals(0, inline.waiting());
+	}
+
+	@Test
+	public void testPromise_circuitBreaker() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(4, 0.5, Duration.ofMillis(100));
+		Exception down = new IllegalStateException("down");
+		// completed promises record their outcome before call returns
+		breaker.call(() -> Promise.unit(1));
+		breaker.call(() -> Promise.failure(down));
+		breaker.call(() -> Promise.unit(2));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+		assertEquals(1 / 3.0, breaker.failureRate(), 1e-9);
+		breaker.call(() -> Promise.failure(down));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+		// open: fail fast without calling the dependency
+		AtomicInteger calls = new AtomicInteger(0);
+		Promise<Integer> rejected = breaker.call(() -> Promise.unit(calls.incrementAndGet()));
+		assertTrue(rejected.getException() instanceof RejectedExecutionException);
+		assertEquals(0, calls.get());
+
+		// a cancelled trial opens the breaker again for a full duration
+		Thread.sleep(150);
+		SettablePromise<Integer> trial = new SettablePromise<>();
+		assertSame(trial, breaker.call(() -> trial));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+		assertTrue(breaker.call(() -> Promise.unit(0)).getException() instanceof RejectedExecutionException);
+		trial.cancel(true);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+		assertTrue(breaker.call(() -> Promise.unit(0)).getException() instanceof RejectedExecutionException);
+
+		// a trial that never completes expires, and its late outcome is ignored
+		Thread.sleep(150);
+		SettablePromise<Integer> stuck = new SettablePromise<>();
+		breaker.call(() -> stuck);
+		Thread.sleep(150);
+		breaker.call(() -> Promise.failure(down));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+		stuck.set(1);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+		assertTrue(breaker.call(() -> Promise.unit(0)).getException() instanceof RejectedExecutionException);
+
+		// a successful trial closes it with an empty window
+		Thread.sleep(150);
+		assertEquals(Integer.valueOf(7), breaker.submit(() -> 7).await());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (breaker.state() != CircuitBreaker.State.CLOSED && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+		assertEquals(0.0, breaker.failureRate(), 0.0);
+	}
+
+	/**
+	 * A fake backend call that takes 1 ms, or {@code firstCallMillis} the first time.
+	 */
+	private static Callable<Integer> backend(AtomicInteger calls, long firstCallMillis) {
+		return () -> {
+			int call = calls.incrementAndGet();
+			Thread.sleep(call == 1 && firstCallMillis > 0 ? firstCallMillis : 1);
+			return call;
+		};
+	}
+
+	private static boolean isCancelled(Promise<?> promise) {
+		return promise.getException() instanceof CancellationException;
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Promise completed by hand from the test.
+	 */
+	private static class SettablePromise<T> extends Promise<T> {
+		void set(T value) {
+			notifySuccess(value);
+		}
+
+		List<Listener<T>> waiting() {
+			return listeners();
+		}
+
+		T settled() {
+			return value();
+		}
+
+		Exception failed() {
+			return exception();
+		}
+	}
+
 	/**
 	 * Fake HTTP promise for test purpose. It either returns a pre-configured web
 	 * page asynchronously or throws a 404 NOT FOUND exception.